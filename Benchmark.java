@@ -0,0 +1,789 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+public class Benchmark {
+	
+	/**
+	 * Micro benchmarks for the message system, run with the name of the benchmark
+	 * e.g. java Benchmark compression
+	 */
+	public static void main(String[] args) throws Exception {
+		String mode = (args.length > 0) ? args[0] : "";
+		switch (mode) {
+		case "compression":
+			compression();
+			break;
+		case "fanout":
+			fanout();
+			break;
+		case "decode":
+			decode();
+			break;
+		case "restart":
+			restart();
+			break;
+		case "priority":
+			priority();
+			break;
+		case "tls":
+			tls();
+			break;
+		case "search":
+			search();
+			break;
+		case "trace":
+			trace();
+			break;
+		case "offline":
+			offline();
+			break;
+		default:
+			System.out.println("Usage: java Benchmark <compression|fanout|decode|restart|priority|tls|search|trace|offline>");
+			break;
+		}
+	}
+	
+	/**
+	 * Bytes saved versus CPU time per message for different kinds of payload
+	 */
+	public static void compression() throws IOException {
+		Random random = new Random(42);
+		String[] words = {"hello", "there", "the", "meeting", "is", "at", "tomorrow", "please", "message", 
+				"me", "when", "you", "are", "free", "thanks", "okay", "see", "you", "tonight", "lunch"};
+		
+		Map<String, List<String>> samples = new LinkedHashMap<>();
+		samples.put("short chat", sentences(random, words, 2000, 3, 8));
+		samples.put("long chat", sentences(random, words, 2000, 30, 80));
+		samples.put("presence digest", digests(random, 2000));
+		samples.put("random text", randomText(random, 2000, 200));
+		
+		System.out.printf("%-16s %10s %10s %8s %12s %12s%n", "payload", "raw B/msg", "wire B/msg", "saved", "compress ns", "inflate ns");
+		for (Map.Entry<String, List<String>> e : samples.entrySet()) {
+			Compression compression = new Compression();
+			List<String> messages = e.getValue();
+			
+			// Warm up then measure
+			for (int i = 0; i < 3; i++) for (String m : messages) compression.compress(m);
+			compression = new Compression();
+			long raw = 0;
+			long wire = 0;
+			long compressTime = 0;
+			long inflateTime = 0;
+			int inflated = 0;
+			for (String m : messages) {
+				int length = m.getBytes(StandardCharsets.UTF_8).length;
+				long start = System.nanoTime();
+				byte[] bytes = compression.compress(m);
+				compressTime += System.nanoTime() - start;
+				raw += length;
+				if (bytes == null) {
+					wire += length;
+				} else {
+					wire += bytes.length;
+					start = System.nanoTime();
+					compression.decompress(bytes);
+					inflateTime += System.nanoTime() - start;
+					inflated++;
+				}
+			}
+			int n = messages.size();
+			System.out.printf("%-16s %10d %10d %7.1f%% %12d %12d%n", e.getKey(), raw / n, wire / n,
+					100.0 * (raw - wire) / raw, compressTime / n, (inflated == 0) ? 0 : inflateTime / inflated);
+		}
+	}
+	
+	/**
+	 * CPU time and allocation per recipient of a broadcast, encoding the packet
+	 * for every recipient compared to writing one shared frame
+	 */
+	public static void fanout() throws IOException {
+		int recipients = 1000;
+		int rounds = 2000;
+		DataOutputStream[] streams = new DataOutputStream[recipients];
+		for (int i = 0; i < recipients; i++) {
+			streams[i] = new DataOutputStream(new BufferedOutputStream(OutputStream.nullOutputStream()));
+		}
+		String message = "the meeting is at noon tomorrow, please let everyone in your team know";
+		
+		System.out.printf("%-14s %14s %16s%n", "mode", "ns/recipient", "bytes/recipient");
+		for (int pass = 0; pass < 2; pass++) {
+			for (String mode : new String[] {"per recipient", "shared frame"}) {
+				long allocated = allocatedBytes();
+				long start = System.nanoTime();
+				for (int r = 0; r < rounds; r++) {
+					Frame frame = null;
+					if (mode.equals("shared frame")) {
+						Packet packet = new Packet("MESSAGE", message);
+						packet.setSender("yoda");
+						frame = Frame.of(packet);
+					}
+					for (DataOutputStream out : streams) {
+						if (frame == null) {
+							Packet packet = new Packet("MESSAGE", message);
+							packet.setSender("yoda");
+							Frame.write(out, packet);
+						} else {
+							frame.writeTo(out, null);
+						}
+						out.flush();
+					}
+					if (frame != null) frame.release();
+				}
+				long n = (long)rounds * recipients;
+				long time = System.nanoTime() - start;
+				allocated = allocatedBytes() - allocated;
+				// The first pass is a warm up
+				if (pass == 1) System.out.printf("%-14s %14d %16.1f%n", mode, time / n, (double)allocated / n);
+			}
+		}
+	}
+	
+	/**
+	 * Allocation per request on the server read path, decoding every frame into a new
+	 * Packet and splitting the payload compared to the pooled FrameReader
+	 */
+	public static void decode() throws IOException {
+		List<String> users = Arrays.asList("yoda", "hans", "vader", "luke", "leia");
+		List<String> known = new ArrayList<>(users);
+		known.addAll(Arrays.asList(Packet.TYPES));
+		StringTable names = new StringTable(known);
+		
+		Map<String, Packet> requests = new LinkedHashMap<>();
+		requests.put("WHOELSESINCE", new Packet("WHOELSESINCE", "300"));
+		requests.put("BLOCK", new Packet("BLOCK", "hans"));
+		requests.put("ACK", new Packet("ACK", "123456"));
+		requests.put("LOGIN", new Packet("LOGIN", "yoda wise DEFLATE"));
+		Packet message = new Packet("MESSAGE", "are you coming to the meeting later?");
+		message.setDest("luke");
+		requests.put("MESSAGE", message);
+		
+		int count = 100000;
+		System.out.printf("%-14s %18s %18s %16s%n", "request", "new B/request", "pooled B/request", "MB/s at 100k/s");
+		for (Map.Entry<String, Packet> e : requests.entrySet()) {
+			ByteArrayOutputStream frames = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(frames);
+			for (int i = 0; i < count; i++) Frame.write(out, e.getValue());
+			byte[] bytes = frames.toByteArray();
+			
+			long[] result = new long[2];
+			for (int pass = 0; pass < 3; pass++) {
+				// Decoding a new Packet per request, as ObjectInputStream did
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+				long start = allocatedBytes();
+				long sink = 0;
+				for (int i = 0; i < count; i++) {
+					Packet p = Frame.read(in);
+					sink += parseOld(p);
+				}
+				result[0] = allocatedBytes() - start - bytes.length;
+				
+				// Decoding in place into one reused packet
+				in = new DataInputStream(new ByteArrayInputStream(bytes));
+				FrameReader reader = new FrameReader(in, names);
+				Packet p = new Packet(null, null);
+				start = allocatedBytes();
+				for (int i = 0; i < count; i++) {
+					reader.read(p);
+					sink += parsePooled(p);
+				}
+				result[1] = allocatedBytes() - start;
+				if (sink == 42) System.out.println();
+			}
+			System.out.printf("%-14s %18.1f %18.1f %16.2f%n", e.getKey(), (double)result[0] / count, 
+					(double)result[1] / count, result[1] / (double)count * 100000 / (1024 * 1024));
+		}
+	}
+	
+	private static long parseOld(Packet p) {
+		switch (p.getType()) {
+		case "WHOELSESINCE":
+		case "ACK":
+			return Long.parseLong(p.getPayload());
+		case "LOGIN":
+			return p.getPayload().split(" ")[0].length();
+		case "MESSAGE":
+			return p.getDest().length() + p.getPayload().length();
+		default:
+			return p.getPayload().length();
+		}
+	}
+	
+	private static long parsePooled(Packet p) {
+		switch (p.getType()) {
+		case "WHOELSESINCE":
+		case "ACK":
+			return p.getPayloadLong();
+		case "LOGIN":
+			return p.getPayloadToken(0).length();
+		case "MESSAGE":
+			return p.getDest().length() + p.getPayload().length();
+		default:
+			return p.getPayload().length();
+		}
+	}
+	
+	/**
+	 * Window in which new clients can't get an answer while the server is restarted,
+	 * stopping it then starting a new one compared to the new one taking over the port
+	 * Runs real server processes on port 4600 in the current directory (needs credentials.txt).
+	 */
+	public static void restart() throws Exception {
+		int port = 4600;
+		System.out.printf("%-12s %12s %14s %10s%n", "mode", "probes", "max gap ms", "failed");
+		for (String mode : new String[] {"stop/start", "takeover"}) {
+			Process old = startServer(port, false);
+			Probe probe = new Probe(port);
+			probe.start();
+			Thread.sleep(1000);
+			
+			Process replacement;
+			if (mode.equals("stop/start")) {
+				old.destroy();
+				old.waitFor();
+				replacement = startServer(port, false);
+			} else {
+				replacement = startServer(port, true);
+				old.waitFor();
+			}
+			Thread.sleep(1000);
+			probe.interrupt();
+			probe.join();
+			replacement.destroy();
+			replacement.waitFor();
+			System.out.printf("%-12s %12d %14.1f %10d%n", mode, probe.probes, probe.maxGap / 1e6, probe.failed);
+		}
+	}
+	
+	/**
+	 * Time for a reply to reach a slow client that already has history pages queued, with
+	 * every frame in one class like the old single queue compared to the priority classes
+	 * Needs credentials.txt in the current directory.
+	 */
+	public static void priority() throws Exception {
+		Server server = new Server(10, 60);
+		ServerSocket listener = new ServerSocket(0);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 1024) text.append("yoda: the meeting is at noon tomorrow\n");
+		int pages = 200;
+		int trials = 20;
+		
+		System.out.printf("%-10s %12s %12s%n", "mode", "median ms", "max ms");
+		for (String mode : new String[] {"fifo", "priority"}) {
+			long[] latencies = new long[trials];
+			for (int t = 0; t < trials; t++) {
+				// Small socket buffers so the queue in the outbox is what the reply waits behind
+				Socket client = new Socket();
+				client.setReceiveBufferSize(16 * 1024);
+				client.connect(listener.getLocalSocketAddress());
+				Socket s = listener.accept();
+				s.setSendBufferSize(16 * 1024);
+				Outbox outbox = new Outbox(server, s, new DataOutputStream(new BufferedOutputStream(s.getOutputStream())));
+				outbox.start();
+				
+				Frame page = Frame.of(new Packet("HISTORY", text.toString()));
+				for (int i = 0; i < pages; i++) outbox.offer(page, mode.equals("fifo") ? Outbox.CONTROL : Outbox.REPLAY, false);
+				page.release();
+				long start = System.nanoTime();
+				Frame reply = Frame.of(new Packet("SERVER", "yoda\nhans"));
+				outbox.offer(reply, Outbox.CONTROL, false);
+				reply.release();
+				
+				// The client reads about 16 pages a millisecond
+				DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+				for (int n = 1; !Frame.read(in).getType().equals("SERVER"); n++) {
+					if (n % 16 == 0) Thread.sleep(1);
+				}
+				latencies[t] = System.nanoTime() - start;
+				outbox.abort();
+				client.close();
+			}
+			Arrays.sort(latencies);
+			System.out.printf("%-10s %12.2f %12.2f%n", mode, latencies[trials / 2] / 1e6, latencies[trials - 1] / 1e6);
+		}
+		listener.close();
+	}
+	
+	/**
+	 * Connections per second and message throughput over TLS compared to plain sockets,
+	 * with full handshakes and with resumed sessions
+	 * Makes a self-signed server certificate with keytool in a temporary directory, and a
+	 * trust store for the clients with only that certificate in it.
+	 */
+	public static void tls() throws Exception {
+		File dir = java.nio.file.Files.createTempDirectory("tls").toFile();
+		File keystore = new File(dir, "server.p12");
+		File certificate = new File(dir, "server.cer");
+		File truststore = new File(dir, "trust.p12");
+		keytool("-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+				"-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+				"-keystore", keystore.getPath(), "-storepass", "benchmark");
+		keytool("-exportcert", "-alias", "server", "-keystore", keystore.getPath(), "-storepass", "benchmark",
+				"-file", certificate.getPath());
+		keytool("-importcert", "-noprompt", "-alias", "server", "-file", certificate.getPath(),
+				"-storetype", "PKCS12", "-keystore", truststore.getPath(), "-storepass", "benchmark");
+		Tls serverTls = new Tls(keystore, "benchmark", null, null);
+		Tls clientTls = new Tls(null, null, truststore, "benchmark");
+		for (File f : new File[] {keystore, certificate, truststore}) f.delete();
+		dir.delete();
+		
+		int connections = 500;
+		System.out.printf("%-12s %14s%n", "handshake", "connections/s");
+		for (int pass = 0; pass < 2; pass++) {
+			for (String mode : new String[] {"plain", "tls full", "tls resumed"}) {
+				ServerSocket listener = new ServerSocket(0);
+				Tls tls = mode.equals("plain") ? null : serverTls;
+				Thread server = new Thread(() -> {
+					try {
+						for (int i = 0; i < connections; i++) {
+							Socket s = listener.accept();
+							InputStream in = s.getInputStream();
+							OutputStream out = s.getOutputStream();
+							if (tls != null) {
+								TlsConnection connection = tls.accept(s);
+								in = connection.getInputStream();
+								out = connection.getOutputStream();
+							}
+							out.write(in.read());
+							out.flush();
+							s.close();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				});
+				server.start();
+				
+				long start = System.nanoTime();
+				for (int i = 0; i < connections; i++) {
+					Socket s = new Socket("localhost", listener.getLocalPort());
+					InputStream in = s.getInputStream();
+					OutputStream out = s.getOutputStream();
+					if (tls != null) {
+						// Without the address the client can't look up a session to resume
+						TlsConnection connection = mode.equals("tls full") ? clientTls.connect(s, null, -1)
+								: clientTls.connect(s, "localhost", listener.getLocalPort());
+						in = connection.getInputStream();
+						out = connection.getOutputStream();
+					}
+					out.write(1);
+					out.flush();
+					in.read();
+					s.close();
+				}
+				long time = System.nanoTime() - start;
+				server.join();
+				listener.close();
+				// The first pass is a warm up
+				if (pass == 1) System.out.printf("%-12s %14.0f%n", mode, connections / (time / 1e9));
+			}
+		}
+		
+		int messages = 500000;
+		Packet packet = new Packet("MESSAGE", "the meeting is at noon tomorrow, please let everyone in your team know");
+		packet.setSender("yoda");
+		System.out.printf("%n%-12s %14s %10s%n", "throughput", "messages/s", "MB/s");
+		for (int pass = 0; pass < 2; pass++) {
+			for (String mode : new String[] {"plain", "tls"}) {
+				ServerSocket listener = new ServerSocket(0);
+				Tls tls = mode.equals("plain") ? null : serverTls;
+				long[] received = new long[1];
+				Thread server = new Thread(() -> {
+					try (Socket s = listener.accept()) {
+						InputStream in = s.getInputStream();
+						if (tls != null) in = tls.accept(s).getInputStream();
+						DataInputStream data = new DataInputStream(new BufferedInputStream(in, 16 * 1024));
+						for (int i = 0; i < messages; i++) {
+							int length = data.readInt();
+							data.skipNBytes(length);
+							received[0] += 4 + length;
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				});
+				server.start();
+				
+				long start = System.nanoTime();
+				Socket s = new Socket("localhost", listener.getLocalPort());
+				OutputStream raw = s.getOutputStream();
+				if (tls != null) raw = clientTls.connect(s, "localhost", listener.getLocalPort()).getOutputStream();
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(raw, 16 * 1024));
+				for (int i = 0; i < messages; i++) {
+					Frame.write(out, packet);
+					// Flush in bursts like an outbox does
+					if (i % 32 == 31) out.flush();
+				}
+				out.flush();
+				server.join();
+				long time = System.nanoTime() - start;
+				s.close();
+				listener.close();
+				if (pass == 1) System.out.printf("%-12s %14.0f %10.1f%n", mode, messages / (time / 1e9), received[0] / (time / 1e9) / 1e6);
+			}
+		}
+	}
+	
+	/**
+	 * Cost of indexing on the delivery path, indexing throughput, and search latency with the
+	 * inverted index compared to scanning every message, then the time to rebuild on startup
+	 * Needs credentials.txt in the current directory, the index is kept in a temporary directory.
+	 */
+	public static void search() throws Exception {
+		Server server = new Server(10, 60);
+		int users = server.getUsers().size();
+		File dir = java.nio.file.Files.createTempDirectory("search").toFile();
+		SearchIndex index = new SearchIndex(server, dir);
+		index.start();
+		
+		// Word frequencies are skewed like real text, a few words are in most messages
+		Random random = new Random(1);
+		String[] words = new String[5000];
+		for (int i = 0; i < words.length; i++) words[i] = "w" + Integer.toString(i, 36);
+		int count = 200000;
+		List<int[]> recipients = new ArrayList<>();
+		List<String> texts = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int length = 5 + random.nextInt(11);
+			StringBuilder s = new StringBuilder();
+			for (int j = 0; j < length; j++) {
+				if (j > 0) s.append(' ');
+				s.append(words[(int)(Math.pow(random.nextDouble(), 3) * words.length)]);
+			}
+			int sender = random.nextInt(users);
+			int dest = (sender + 1 + random.nextInt(users - 1)) % users;
+			recipients.add(new int[] {sender, dest});
+			texts.add(s.toString());
+		}
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) index.add(recipients.get(i)[0], recipients.get(i)[1], texts.get(i));
+		long queued = System.nanoTime() - start;
+		while (server.getMetrics().get("search.indexed") < count) Thread.sleep(10);
+		long indexed = System.nanoTime() - start;
+		Thread.sleep(2000);
+		System.out.printf("%-24s %12.0f%n", "add ns/message", (double)queued / count);
+		System.out.printf("%-24s %12.0f%n", "indexed messages/s", count / (indexed / 1e9));
+		System.out.printf("%-24s %12d%n", "segments after merging", index.getSegmentCount());
+		
+		System.out.printf("%n%-16s %14s %14s%n", "query", "index us", "scan us");
+		String[][] queries = {
+				{"common word", words[0]},
+				{"two words", words[0] + " " + words[1]},
+				{"rare word", words[words.length - 1]},
+				{"common, page 5", words[0]}};
+		for (String[] query : queries) {
+			int page = query[0].contains("page 5") ? 5 : 1;
+			int trials = 200;
+			long[] indexTimes = new long[trials];
+			long[] scanTimes = new long[trials];
+			for (int t = 0; t < trials; t++) {
+				int user = t % users;
+				long begin = System.nanoTime();
+				List<String> hits = index.search(user, query[1], page, 10);
+				indexTimes[t] = System.nanoTime() - begin;
+				
+				// Scan from the newest message for ones the user took part in that have every word
+				begin = System.nanoTime();
+				Set<String> wanted = new HashSet<>(Arrays.asList(query[1].split(" ")));
+				int found = 0;
+				for (int i = count - 1; i >= 0 && found < page * 10 + 1; i--) {
+					int[] r = recipients.get(i);
+					if (r[0] != user && r[1] != user) continue;
+					if (new HashSet<>(Arrays.asList(texts.get(i).split(" "))).containsAll(wanted)) found++;
+				}
+				scanTimes[t] = System.nanoTime() - begin;
+				if (hits.size() != Math.max(0, found - (page - 1) * 10)) {
+					System.out.println("Mismatch for " + query[0] + ": " + hits.size() + " hits, scan found " + found);
+				}
+			}
+			Arrays.sort(indexTimes);
+			Arrays.sort(scanTimes);
+			System.out.printf("%-16s %14.1f %14.1f%n", query[0], indexTimes[trials / 2] / 1e3, scanTimes[trials / 2] / 1e3);
+		}
+		
+		index.close();
+		start = System.nanoTime();
+		SearchIndex reopened = new SearchIndex(server, dir);
+		System.out.printf("%n%-24s %12.0f%n", "rebuild ms", (System.nanoTime() - start) / 1e6);
+		reopened.close();
+		for (File f : dir.listFiles()) f.delete();
+		dir.delete();
+	}
+	
+	/**
+	 * Where the time goes between a client sending a direct message and the recipient getting it,
+	 * with four pairs of clients each sending at a steady rate, without shards and with shards
+	 * Runs servers on ports 4601 and 4605 in the current directory (needs credentials.txt with 8 users).
+	 */
+	public static void trace() throws Exception {
+		String[][] accounts = {{"hans", "falcon"}, {"yoda", "wise"}, {"vader", "sithlord"}, {"r2d2", "socute"},
+				{"c3p0", "droid"}, {"leia", "blasterpistol"}, {"obiwan", "jedimaster"}, {"luke", "lightsaber"}};
+		int messages = 5000;
+		int rate = 1000;
+		String[] stages = {"trace.uplink.us", "trace.lock.us", "trace.handle.us", "trace.outbox.us", "trace.downlink.us", "trace.total.us"};
+		
+		for (int shards : new int[] {0, 4}) {
+			Server server = new Server(10, 60);
+			server.listen(4601 + shards, false);
+			server.enableShards(shards);
+			server.getLimiter().setPerUserLimits(false);
+			Thread serving = new Thread(() -> {
+				try {
+					server.serve();
+				} catch (IOException e) {
+					// Closed by drain
+				}
+			});
+			serving.setDaemon(true);
+			serving.start();
+			
+			// Even accounts send to the odd account after them, every client traces
+			Metrics traces = new Metrics();
+			CountDownLatch loggedIn = new CountDownLatch(accounts.length);
+			CountDownLatch received = new CountDownLatch(messages * accounts.length / 2);
+			List<Client> clients = new ArrayList<>();
+			for (String[] account : accounts) {
+				Client client = new Client(InetAddress.getLoopbackAddress(), 4601 + shards, new ClientListener() {
+					@Override
+					public void loggedIn() {
+						loggedIn.countDown();
+					}
+					
+					@Override
+					public void message(String sender, String message) {
+						received.countDown();
+					}
+				}, false);
+				client.setDirect(false);
+				client.setTracing(traces);
+				client.connect();
+				client.login(account[0], account[1]);
+				clients.add(client);
+			}
+			loggedIn.await();
+			
+			List<Thread> senders = new ArrayList<>();
+			for (int i = 0; i < accounts.length; i += 2) {
+				Client client = clients.get(i);
+				String dest = accounts[i + 1][0];
+				Thread sender = new Thread(() -> {
+					try {
+						long start = System.nanoTime();
+						for (int n = 0; n < messages; n++) {
+							long due = start + n * 1000000000L / rate;
+							while (System.nanoTime() < due) Thread.sleep(0, 100000);
+							client.message(dest, "message number " + n);
+						}
+					} catch (IOException | InterruptedException e) {
+						e.printStackTrace();
+					}
+				});
+				sender.start();
+				senders.add(sender);
+			}
+			for (Thread sender : senders) sender.join();
+			received.await();
+			
+			System.out.printf("%n%s%n%-12s %10s %10s %10s%n", (shards == 0) ? "server lock" : shards + " shards", "stage", "p50 us", "p99 us", "max us");
+			for (String stage : stages) {
+				// The outbox stage is only seen by the server
+				Histogram h = stage.equals("trace.outbox.us") ? server.getMetrics().getHistogram(stage) : traces.getHistogram(stage);
+				if (h == null) continue;
+				System.out.printf("%-12s %10d %10d %10d%n", stage.substring(6, stage.length() - 3), h.percentile(0.5), h.percentile(0.99), h.max());
+			}
+			for (Client client : clients) client.close();
+			server.drain();
+		}
+	}
+	
+	/**
+	 * Time from logging in to having every offline message, for users with large backlogs,
+	 * with one packet per message compared to batches
+	 * Runs a server on port 4610 in the current directory (needs credentials.txt).
+	 */
+	public static void offline() throws Exception {
+		Server server = new Server(10, 60);
+		server.listen(4610, false);
+		server.getLimiter().setPerUserLimits(false);
+		Thread serving = new Thread(() -> {
+			try {
+				server.serve();
+			} catch (IOException e) {
+				// Closed by drain
+			}
+		});
+		serving.setDaemon(true);
+		serving.start();
+		
+		User hans = server.getUser("hans");
+		String[] senders = {"yoda", "vader", "leia", "luke"};
+		System.out.printf("%-10s %10s %12s %14s%n", "mode", "backlog", "caught up ms", "messages/s");
+		for (int backlog : new int[] {1000, 10000, 100000}) {
+			for (boolean batched : new boolean[] {false, true}) {
+				server.setOfflineBatching(batched);
+				for (int i = 0; i < backlog; i++) {
+					Packet p = new Packet("MESSAGE", "offline message number " + i + " about the meeting tomorrow");
+					p.setSender(senders[i % senders.length]);
+					hans.addMessage(p);
+				}
+				
+				CountDownLatch received = new CountDownLatch(backlog);
+				CountDownLatch loggedIn = new CountDownLatch(1);
+				Client client = new Client(InetAddress.getLoopbackAddress(), 4610, new ClientListener() {
+					@Override
+					public void loggedIn() {
+						loggedIn.countDown();
+					}
+					
+					@Override
+					public void message(String sender, String message) {
+						received.countDown();
+					}
+				}, true);
+				client.setDirect(false);
+				client.connect();
+				long start = System.nanoTime();
+				client.login("hans", "falcon");
+				received.await();
+				long elapsed = System.nanoTime() - start;
+				System.out.printf("%-10s %10d %12.1f %14.0f%n", batched ? "batched" : "single", backlog, elapsed / 1e6, backlog / (elapsed / 1e9));
+				
+				client.logout();
+				client.close();
+				while (hans.isOnline()) Thread.sleep(10);
+			}
+		}
+		server.drain();
+	}
+	
+	/**
+	 * Run keytool from the running JDK and wait for it
+	 */
+	private static void keytool(String... args) throws Exception {
+		List<String> command = new ArrayList<>();
+		command.add(new File(System.getProperty("java.home"), "bin/keytool").getPath());
+		command.addAll(Arrays.asList(args));
+		new ProcessBuilder(command).inheritIO().start().waitFor();
+	}
+	
+	/**
+	 * Start a server process and wait until it is accepting clients
+	 */
+	private static Process startServer(int port, boolean takeover) throws Exception {
+		List<String> command = new ArrayList<>(Arrays.asList(
+				new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", System.getProperty("java.class.path"),
+				"Server", Integer.toString(port), "10", "60", "-d"));
+		if (takeover) command.add("-takeover");
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		
+		// Keep reading the debug output so the server never blocks on it
+		CountDownLatch ready = new CountDownLatch(1);
+		Thread reader = new Thread(() -> {
+			try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				String line;
+				while ((line = out.readLine()) != null) {
+					if (line.startsWith("Server is ready")) ready.countDown();
+				}
+			} catch (IOException e) {
+				// The process has exited
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+		ready.await();
+		return process;
+	}
+	
+	/**
+	 * Connects and tries to log in over and over, recording the longest time without an answer
+	 */
+	private static class Probe extends Thread {
+		
+		private int port;
+		private long maxGap;
+		private int probes;
+		private int failed;
+		
+		Probe(int port) {
+			this.port = port;
+		}
+		
+		@Override
+		public void run() {
+			long last = System.nanoTime();
+			while (!isInterrupted()) {
+				try (Socket s = new Socket()) {
+					s.connect(new InetSocketAddress("localhost", port), 5000);
+					s.setSoTimeout(5000);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+					DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+					Frame.write(out, new Packet("LOGIN", "nobody nothing"));
+					out.flush();
+					Frame.read(in);
+					long now = System.nanoTime();
+					maxGap = Math.max(maxGap, now - last);
+					last = now;
+					probes++;
+				} catch (IOException e) {
+					failed++;
+				}
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Bytes allocated by the current thread so far
+	 */
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	private static List<String> sentences(Random random, String[] words, int count, int min, int max) {
+		List<String> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int length = min + random.nextInt(max - min + 1);
+			StringBuilder s = new StringBuilder();
+			for (int j = 0; j < length; j++) {
+				if (j > 0) s.append(' ');
+				s.append(words[random.nextInt(words.length)]);
+			}
+			result.add(s.toString());
+		}
+		return result;
+	}
+	
+	private static List<String> digests(Random random, int count) {
+		List<String> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			StringBuilder s = new StringBuilder("joined: ");
+			int joined = 5 + random.nextInt(20);
+			for (int j = 0; j < joined; j++) s.append(j > 0 ? ", " : "").append("user").append(random.nextInt(1000));
+			s.append("; left: ");
+			int left = 5 + random.nextInt(20);
+			for (int j = 0; j < left; j++) s.append(j > 0 ? ", " : "").append("user").append(random.nextInt(1000));
+			result.add(s.toString());
+		}
+		return result;
+	}
+	
+	private static List<String> randomText(Random random, int count, int length) {
+		List<String> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			char[] c = new char[length];
+			for (int j = 0; j < length; j++) c[j] = (char)('!' + random.nextInt(90));
+			result.add(new String(c));
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Channel {
+	
+	private String name;
+	private Set<Integer> subscribers;
+	private ReentrantLock orderLock = new ReentrantLock();
+	
+	/**
+	 * Named channel that users can join to receive each other's messages
+	 * @param name: name of the channel
+	 */
+	public Channel(String name) {
+		this.name = name;
+		this.subscribers = ConcurrentHashMap.newKeySet();
+	}
+	
+	/**
+	 * Get the name of the channel
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Subscribe a user to the channel
+	 * @param user: ID of the new subscriber
+	 * @return true if the user was not already subscribed
+	 */
+	public boolean join(int user) {
+		return subscribers.add(user);
+	}
+	
+	/**
+	 * Unsubscribe a user from the channel
+	 * @param user: ID of the subscriber
+	 * @return true if the user was subscribed
+	 */
+	public boolean leave(int user) {
+		return subscribers.remove(user);
+	}
+	
+	/**
+	 * Check if a user is subscribed to the channel
+	 */
+	public boolean isSubscribed(int user) {
+		return subscribers.contains(user);
+	}
+	
+	/**
+	 * Send a message to every subscriber of the channel
+	 * Only the subscribers are visited and the server lock is not taken. Publishing holds
+	 * the channel's own lock so every subscriber sees the messages in the same order.
+	 * Subscribers that are offline get the message when they next log in.
+	 * @param server: server the subscribers are registered on
+	 * @param sender: user that sent the message
+	 * @param message: body
+	 */
+	public void publish(Server server, User sender, String message) {
+		Packet packet = new Packet("CHANNEL", message);
+		packet.setSender(sender.getUsername());
+		packet.setDest(name);
+		Frame frame = Frame.of(packet);
+		
+		orderLock.lock();
+		try {
+			for (int subscriber : subscribers) {
+				if (subscriber == sender.getId()) continue;
+				User u = server.getUser(subscriber);
+				if (u == null || u.hasBlocked(sender.getId())) continue;
+				
+				// Checking the session and queueing happen together so a user logging in
+				// at the same time can't miss the message
+				ClientHandler client;
+				synchronized (u) {
+					client = server.getClient(subscriber);
+					if (client == null) u.addMessage(packet);
+				}
+				if (client != null) {
+					try {
+						// Lagging subscribers miss channel posts until they catch up
+						client.sendBulk(frame);
+					} catch (IOException e) {
+						u.addMessage(packet);
+					}
+				}
+			}
+		} finally {
+			orderLock.unlock();
+			frame.release();
+		}
+	}
+
+}
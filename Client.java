@@ -1,316 +1,520 @@
 import java.io.*;
 import java.net.*;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
-public class Client extends Thread {
+public class Client {
 	
-	static Socket s;
-	static ObjectInputStream in;
-	static ObjectOutputStream out;
-	static Scanner scn;
-	static private ReentrantLock syncLock = new ReentrantLock();
-	static P2PHub peerConnections;
-	static Client client;
-	static boolean loggedIn;
-	static boolean exitStatus;
-	static String username;
+	// Frames received but not decoded yet, once full the receive thread stops reading
+	// and the server holds the rest in its outbox for this client
+	private static final int RECEIVE_QUEUE = 4096;
+	// Put in the receive queue when a connection ends
+	private static final byte[] LOST = new byte[0];
 	
-	public static void main (String[] args) throws Exception {
-			
-			// Getting and starting sockets
-			InetAddress ip = InetAddress.getByName(args[0]);
-			int port = Integer.parseInt(args[1]);
-			s = new Socket(ip, port);
-			ServerSocket welcomeSocket = new ServerSocket(0);
-			
-			// Setting initial exit states
-			loggedIn = false;
-			exitStatus = false;
-			
-			// Initializing streams
-			if (out == null) out = new ObjectOutputStream(s.getOutputStream());
-			if (in == null) in = new ObjectInputStream(s.getInputStream());
-			scn = new Scanner(System.in);
-			
-			// Initializing threads
-			client = new Client();
-			client.start();
-			peerConnections = new P2PHub(welcomeSocket);
-			peerConnections.start();
-			
-			// Main function receives packets
-			while (true) {
-				try {
-					
-					if (!loggedIn) System.out.println("Pleast enter your username:");
-					
-					// Receive a packet and extract general data
-					Packet packetIn = (Packet) in.readObject();
-					syncLock.lock();
-					String type = packetIn.getType();
-					String payload = packetIn.getPayload();
-					
-					// Do not process any other packets than login and logout if the user has not logged in
-					if (!(type.equals("LOGIN") || type.equals("LOGOUT")) && !loggedIn) {
-						continue;
-					}
-					
-					switch(type) {
-					
-					// Receive and process login attempt status
-					case "LOGIN":
-						String loginStatus = payload;
-						switch (loginStatus) {
-						case "SUCCESS":
-							System.out.println("Welcome to the greatest messaging application ever!");
-							int portNo = welcomeSocket.getLocalPort();
-							// Send the client's port number for private messaging
-							Packet welcome = new Packet("WELCOMEPORT", Integer.toString(portNo));
-							out.writeObject(welcome);
-							loggedIn = true;
-							break;
-						case "BLOCK":
-							System.out.println("Invalid Password. Your account has been blocked. Please try again later");
-							break;
-						case "BLOCKED":
-							System.out.println("Your account is blocked due to multiple login failures. Please try again later");
-							break;
-						case "USERNAME":
-							System.out.println("Invalid username. Please try again");
-							break;
-						case "PASSWORD":
-							System.out.println("Invalid password. Please try again");
-							break;
-						case "ONLINE":
-							System.out.println("This user is already online, please try another account");
-							break;
-						default:
-							System.out.println("Something went wrong, please try again");
-							break;
-						}
-						break;
-						
-					// Receive a message from another user
-					case "MESSAGE":
-						System.out.println(packetIn.getSender() + ": " + payload);
-						break;
-						
-					// Make a new private connection
-					// Payload contains all parameters to make the new connection
-					case "STARTPRIVATE":
-						String[] socketInfo = payload.split(" ");
-						String source = socketInfo[0];
-						String target = socketInfo[1];
-						int targetPort = Integer.parseInt(socketInfo[2]);
-						
-						if (peerConnections.makeConnection(source, target, targetPort)) {
-							System.out.println("Start private messaging with " + target);
-						} else {
-							System.out.println("Error: Failed to make private connection with " + target);
-						}
-						break;
-					
-					// Acknowledgement for logout command
-					case "LOGOUT":
-						System.out.println("You have been logged out");
-						loggedIn = false;
-						break;	
-						
-					// Acknowledgement for exit command
-					case "EXIT":
-						System.out.println("You have been logged out");
-						System.out.println("Goodbye");
-						exitStatus = true;
-						loggedIn = false;
-						break;
-					
-					// Timed out due to inactivity
-					case "TIMEOUT":
-						System.out.println("You timed out due to inactivity, please log back in again");
-						loggedIn = false;
-						Thread.sleep(10);
-						break;
-						
-					// Server message including login/logout and error notifications
-					case "SERVER":
-						System.out.println(payload);
-						break;
-					}
-					
-					// If the user logs out, close all private connections
-					if (!loggedIn) {
-						peerConnections.closeConnections();
-						Thread.sleep(100);
-					}
-					
-					// If the user exits, then close all streams and sockets
-					if (exitStatus) {
-						scn.close();
-						in.close();
-						out.close();
-						s.close();
-						welcomeSocket.close();
-						break;
-					}
-					syncLock.unlock();
-					
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}		
+	private InetAddress ip;
+	private int port;
+	private ClientListener listener;
+	private boolean offerCompression;
+	private InetAddress localAddress;
+	private boolean direct;
+	private Tls tls;
+	// Latency of traced messages, null if this client doesn't trace
+	private Metrics traces;
+	private volatile Socket s;
+	private volatile DataOutputStream out;
+	private ServerSocket welcomeSocket;
+	private P2PHub peerConnections;
+	private BlockingQueue<byte[]> received;
+	private StringTable names;
+	private Compression compression;
+	private volatile boolean compress;
+	private volatile boolean loggedIn;
+	private volatile boolean closed;
+	private String username;
+	// Last history and search, so the next page can be asked for
+	private String lastHistoryUser;
+	private String lastQuery;
+	private int lastSearchPage;
+	// Offline messages received since the last batch without more
+	private int offlineCount;
+	
+	/**
+	 * Client of the message system, for the terminal or embedded in another program
+	 * Receiving, decoding and rendering run on separate threads connected by queues: one thread
+	 * reads frames off the socket, one decodes them and calls the listener, and the caller's
+	 * thread sends commands, so neither typing nor a slow listener holds up receiving.
+	 * @param ip: address of the server
+	 * @param port: port of the server
+	 * @param listener: gets everything the client receives
+	 * @param offerCompression: true to ask the server and other users to compress packets
+	 */
+	public Client(InetAddress ip, int port, ClientListener listener, boolean offerCompression) {
+		this.ip = ip;
+		this.port = port;
+		this.listener = listener;
+		this.offerCompression = offerCompression;
+		this.localAddress = null;
+		this.direct = true;
+		this.tls = null;
+		this.traces = null;
+		this.received = new ArrayBlockingQueue<>(RECEIVE_QUEUE);
+		this.names = new StringTable(Arrays.asList(Packet.TYPES));
+		this.compression = new Compression();
+		this.compress = false;
+		this.loggedIn = false;
+		this.closed = false;
 	}
 	
-	// Thread for sending packets
-	@Override
-	public void run() {
-
-		Packet packetOut;
-		String command = null;
-		String target = null;
-		String message = null;
+	public static void main (String[] args) throws Exception {
 		
-		while (true) {
-			
-			String tosend = scn.nextLine();
-			String[] tokens = tosend.split(" ");
-			syncLock.lock();
+		InetAddress ip = InetAddress.getByName(args[0]);
+		int port = Integer.parseInt(args[1]);
+		
+		// Optional flags after the server address
+		// -nocompress: don't ask for compressed packets
+		// -bind <address>: connect from and listen on this local address, e.g. 127.0.0.2
+		// -nodirect: don't accept direct private connections, other users go through the relay
+		// -tls <truststore> <password>: connect with TLS, trusting the certificates in a PKCS12 store
+		//     that holds no private keys (the server's, and other users' for private connections)
+		// -tlskey <keystore> <password>: this user's own key, needed to take encrypted private connections
+		// -trace: trace direct messages and print the latency of each stage on exit
+		boolean offerCompression = true;
+		InetAddress localAddress = null;
+		boolean direct = true;
+		File truststore = null;
+		String trustPassword = null;
+		File keystore = null;
+		String keyPassword = null;
+		Metrics traces = null;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("-nocompress")) offerCompression = false;
+			else if (args[i].equals("-bind")) localAddress = InetAddress.getByName(args[++i]);
+			else if (args[i].equals("-nodirect")) direct = false;
+			else if (args[i].equals("-trace")) traces = new Metrics();
+			else if (args[i].equals("-tls")) {
+				truststore = new File(args[i + 1]);
+				trustPassword = args[i + 2];
+				i += 2;
+			} else if (args[i].equals("-tlskey")) {
+				keystore = new File(args[i + 1]);
+				keyPassword = args[i + 2];
+				i += 2;
+			}
+		}
+		Tls tls = (truststore == null) ? null : new Tls(keystore, keyPassword, truststore, trustPassword);
+		
+		Renderer renderer = new Renderer(System.out);
+		renderer.start();
+		Client client = new Client(ip, port, renderer, offerCompression);
+		client.setLocalAddress(localAddress);
+		client.setDirect(direct);
+		client.setTls(tls);
+		client.setTracing(traces);
+		client.connect();
+		
+		// The main thread only reads commands
+		Scanner scn = new Scanner(System.in);
+		while (!client.isClosed() && scn.hasNextLine()) {
+			String line = scn.nextLine();
 			
+			// If the user is not logged in, they can only perform a login
+			// sequence, they do not have access to other commands
+			if (!client.isLoggedIn()) {
+				renderer.print("Please enter your password:");
+				if (!scn.hasNextLine()) break;
+				client.login(line, scn.nextLine());
+			} else if (client.command(line)) {
+				break;
+			}
+		}
+		
+		client.awaitClose(2000);
+		client.close();
+		if (traces != null) renderer.print(traces.report());
+		renderer.finish(1000);
+		scn.close();
+	}
+	
+	/**
+	 * Set the local address to connect from and to take private connections on, before connecting
+	 * @param address: local address, null for any
+	 */
+	public void setLocalAddress(InetAddress address) {
+		this.localAddress = address;
+	}
+	
+	/**
+	 * Choose whether other users can connect to this client directly, before connecting
+	 * Without direct connections private messaging always goes through the server's relay.
+	 */
+	public void setDirect(boolean direct) {
+		this.direct = direct;
+	}
+	
+	/**
+	 * Use TLS for the server connection and private connections, before connecting
+	 * Reconnects resume the TLS session instead of doing a full handshake.
+	 * @param tls: settings trusting the server's certificate, null for plain connections
+	 */
+	public void setTls(Tls tls) {
+		this.tls = tls;
+	}
+	
+	/**
+	 * Trace the direct messages this client sends, and time the traced messages it receives
+	 * Traced messages carry a stamp from every stage they pass, the recipient adds up the
+	 * time between stages in histograms (see Trace). The server keeps its own as well.
+	 * @param traces: metrics to keep the histograms in, can be shared by several clients, null to not trace
+	 */
+	public void setTracing(Metrics traces) {
+		this.traces = traces;
+	}
+	
+	/**
+	 * Connect to the server and start receiving
+	 */
+	public void connect() throws IOException {
+		welcomeSocket = direct ? new ServerSocket(0, 50, localAddress) : null;
+		peerConnections = new P2PHub(welcomeSocket, localAddress, offerCompression, tls, listener);
+		peerConnections.start();
+		open();
+		new Decoder().start();
+		listener.connected();
+	}
+	
+	private void open() throws IOException {
+		Socket socket = new Socket(ip, port, localAddress, 0);
+		InputStream rawIn = socket.getInputStream();
+		OutputStream rawOut = socket.getOutputStream();
+		if (tls != null) {
+			TlsConnection connection = tls.connect(socket, ip.getHostAddress(), port);
+			connection.handshake();
+			rawIn = connection.getInputStream();
+			rawOut = connection.getOutputStream();
+		}
+		out = new DataOutputStream(new BufferedOutputStream(rawOut));
+		s = socket;
+		new Receiver(new DataInputStream(new BufferedInputStream(rawIn))).start();
+	}
+	
+	/**
+	 * Connect to the server again after losing the connection
+	 * A restarting server tells its clients to reconnect, the new server may take a moment to appear
+	 * @return true if the client is connected again and should log in
+	 */
+	private boolean reconnect() throws InterruptedException {
+		listener.notice("Lost connection to the server, reconnecting...");
+		peerConnections.closeConnections();
+		loggedIn = false;
+		compress = false;
+		for (int attempt = 0; attempt < 50 && !closed; attempt++) {
 			try {
-				// If the user is not logged in, they can only perform a login
-				// sequence, they do not have access to other commands
-				if (!loggedIn) {
-					System.out.println("Please enter your password:");
-					username = tosend;
-					String password = scn.nextLine();
-					out.writeObject(new Packet("LOGIN", username + " " + password));
-				} else {
-					// Get the command
-					command = tokens[0];
-					if (tokens.length >= 2) target = tokens[1];
-					if (!checkValidFormat(tokens)) {
-						syncLock.unlock();
-						continue;
-					}
-					
-					switch(command) {
-					
-					// Message another user
-					case "message":		
-						packetOut = new Packet("MESSAGE", null);
-						// Set the destination user and remove the 'message user' part of string
-						packetOut.setDest(target);
-						message = tosend.replaceFirst(command + " " + target + " ", "");
-						
-						packetOut.setPayload(message);
-						out.writeObject(packetOut);
-						break;
+				open();
+				listener.notice("Reconnected to the server");
+				listener.connected();
+				return true;
+			} catch (IOException e) {
+				Thread.sleep(200);
+			}
+		}
+		return false;
+	}
 	
-					// Broadcast a message
-					case "broadcast":
-						message = tosend.replaceFirst("broadcast ", "");
-						packetOut = new Packet ("BROADCAST", message);
-						out.writeObject(packetOut);
-						break;
-						
-					// whoelse command
-					case "whoelse":
-						packetOut = new Packet("WHOELSE", null);
-						out.writeObject(packetOut);
-						break;
-					
-					// whoelsesince command
-					case "whoelsesince":
-						long diff = Long.parseLong(target);
-						packetOut = new Packet("WHOELSESINCE", Long.toString(diff));
-						out.writeObject(packetOut);
-						break;
-					
-					// Block a user
-					case "block":
-						packetOut = new Packet("BLOCK", target);
-						out.writeObject(packetOut);
-						if (peerConnections.isConnectedTo(target)) {
-							peerConnections.sendMessage(target, "stopprivate");
-						}
-						break;
-					
-					// Unblock a user
-					case "unblock":
-						packetOut = new Packet("UNBLOCK", target);
-						out.writeObject(packetOut);
-						break;
-					
-					// Send request for starting a private connection with another user
-					case "startprivate":
-						if (target.equals(username)) {
-							System.out.println("Error: Cannot start private messaging self");
-							break;
-						}
-						packetOut = new Packet("STARTPRIVATE", target);
-						out.writeObject(packetOut);
-						break;
-					
-					// Private message a user
-					case "private":
-						if (target.equals(username)) {
-							System.out.println("Error: Cannot private message self");
-							break;
-						}
-						message = tosend.replaceFirst(command + " " + target + " ", "");
-						peerConnections.sendMessage(target, message);
-						break;
-					
-					// Close a private connection with a user
-					case "stopprivate":
-						if (target.equals(username)) {
-							System.out.println("Error: Cannot start private messaging self");
-						} else if (peerConnections.isConnectedTo(target)) {
-							peerConnections.sendMessage(target, "stopprivate");
-						} else {
-							System.out.println("Error: No private connection with " + target + " yet");
-						}
-						break;			
-										
-					// Logout of the system, but not close the program
-					case "logout":
-						System.out.println("Logging out...");
-						packetOut = new Packet("LOGOUT", null);
-						out.writeObject(packetOut);
-						loggedIn = false;
-						break;
-						
-					// Start the sequence to exit the program
-					case "exit":
-						System.out.println("Exiting the system...");
-						System.out.println("Logging out...");
-						// Send exit to server to close their end
-						packetOut = new Packet("EXIT", null);
-						out.writeObject(packetOut);
-						syncLock.unlock();
-						Thread.sleep(50);
-						exitStatus = true;
-						loggedIn = false;
-						break;
-					
-					default:
-						System.out.println("Error: Invalid command");
-						break;
-					}
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
+	/**
+	 * Close the connections to the server and other users
+	 */
+	public void close() {
+		closed = true;
+		loggedIn = false;
+		peerConnections.closeConnections();
+		try {
+			s.close();
+			if (welcomeSocket != null) welcomeSocket.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Wait for the server to close the connection after exit
+	 * @param millis: longest time to wait
+	 */
+	public synchronized void awaitClose(long millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + millis;
+		while (!closed && System.currentTimeMillis() < end) wait(Math.max(1, end - System.currentTimeMillis()));
+	}
+	
+	/**
+	 * Check if the client has been closed, after exit or after the server couldn't be reached again
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Check if a user is logged in
+	 */
+	public boolean isLoggedIn() {
+		return loggedIn;
+	}
+	
+	/**
+	 * Send a packet to the server, compressing it if that was agreed at login
+	 * Called by the decode thread for acknowledgements as well as by the caller, so writes are synchronized
+	 * @param packet: packet to be sent
+	 */
+	public synchronized void send(Packet packet) throws IOException {
+		if (compress) packet = packet.compress(compression);
+		Frame.write(out, packet);
+		out.flush();
+	}
+	
+	/**
+	 * Log in, the result is passed to the listener
+	 * @param username: name of the account
+	 * @param password: password of the account
+	 */
+	public void login(String username, String password) throws IOException {
+		this.username = username;
+		// Ask for compression after the password
+		String login = username + " " + password;
+		if (offerCompression) login = login + " " + Compression.METHOD;
+		send(new Packet("LOGIN", login));
+	}
+	
+	/**
+	 * Message another user
+	 */
+	public void message(String user, String message) throws IOException {
+		Packet packet = new Packet("MESSAGE", message);
+		packet.setDest(user);
+		if (traces != null) packet.startTrace();
+		send(packet);
+	}
+	
+	/**
+	 * Message several users at once, the server answers with one receipt for all of them
+	 */
+	public void message(List<String> users, String message) throws IOException {
+		Packet packet = new Packet("MESSAGE", message);
+		packet.setDests(users.toArray(new String[0]));
+		send(packet);
+	}
+	
+	/**
+	 * Message everyone in a channel
+	 */
+	public void channel(String channel, String message) throws IOException {
+		Packet packet = new Packet("CHANNEL", message);
+		packet.setDest(channel);
+		send(packet);
+	}
+	
+	/**
+	 * Message every online user
+	 */
+	public void broadcast(String message) throws IOException {
+		send(new Packet("BROADCAST", message));
+	}
+	
+	/**
+	 * Search the messages the user has sent and received
+	 * @param query: words that must all be in a message
+	 * @param page: page of results, starting at 1
+	 */
+	public void search(String query, int page) throws IOException {
+		lastQuery = query;
+		lastSearchPage = page;
+		send(new Packet("SEARCH", page + " " + query));
+	}
+	
+	/**
+	 * Log out of the system, but not close the client
+	 */
+	public void logout() throws IOException {
+		send(new Packet("LOGOUT", null));
+		loggedIn = false;
+	}
+	
+	/**
+	 * Log out and close the client once the server has answered
+	 */
+	public void exit() throws IOException {
+		send(new Packet("EXIT", null));
+	}
+	
+	/**
+	 * Run a command typed by the user
+	 * @param line: the command and its arguments
+	 * @return true if the command was exit
+	 */
+	public boolean command(String line) throws IOException {
+		String[] tokens = line.split(" ");
+		String command = tokens[0];
+		String target = (tokens.length >= 2) ? tokens[1] : null;
+		String message;
+		if (!checkValidFormat(tokens)) return false;
+		
+		switch(command) {
+		
+		// Message another user
+		case "message":
+			// Remove the 'message user' part of string
+			message = line.replaceFirst(command + " " + target + " ", "");
+			// A comma separated list sends the same message to every user in it
+			if (target.contains(",")) message(Arrays.asList(target.split(",")), message);
+			else message(target, message);
+			break;
+		
+		// Join a channel
+		case "join":
+			send(new Packet("JOIN", target));
+			break;
+		
+		// Leave a channel
+		case "leave":
+			send(new Packet("LEAVE", target));
+			break;
+		
+		// Message everyone in a channel
+		case "channel":
+			channel(target, line.replaceFirst(command + " " + target + " ", ""));
+			break;
+		
+		// Broadcast a message
+		case "broadcast":
+			broadcast(line.replaceFirst("broadcast ", ""));
+			break;
+		
+		// whoelse command
+		case "whoelse":
+			send(new Packet("WHOELSE", null));
+			break;
+		
+		// whoelsesince command
+		case "whoelsesince":
+			long diff = Long.parseLong(target);
+			send(new Packet("WHOELSESINCE", Long.toString(diff)));
+			break;
+		
+		// Fetch the last messages with a user
+		case "history":
+			Packet history = new Packet("HISTORY", Integer.toString(Integer.parseInt(tokens[2])));
+			history.setDest(target);
+			lastHistoryUser = target;
+			send(history);
+			break;
+		
+		// Fetch the messages with a user since a number of seconds ago
+		case "historysince":
+			Packet historySince = new Packet("HISTORYSINCE", Long.toString(Long.parseLong(tokens[2])));
+			historySince.setDest(target);
+			lastHistoryUser = target;
+			send(historySince);
+			break;
+		
+		// Next page of the last history
+		case "historymore":
+			if (lastHistoryUser == null) {
+				listener.notice("Error: No history to continue");
+			} else {
+				Packet historyMore = new Packet("HISTORYMORE", null);
+				historyMore.setDest(lastHistoryUser);
+				send(historyMore);
 			}
-			
-			// If exit is called, stop running 
-			// exit has it's own unlock, so don't want to call it twice
-			if (exitStatus) break;
-			else syncLock.unlock();
+			break;
+		
+		// Search the messages sent and received for every word
+		case "search":
+			search(line.replaceFirst("search ", ""), 1);
+			break;
+		
+		// Next page of the last search
+		case "searchmore":
+			if (lastQuery == null) listener.notice("Error: No search to continue");
+			else search(lastQuery, lastSearchPage + 1);
+			break;
+		
+		// Block a user
+		case "block":
+			send(new Packet("BLOCK", target));
+			if (peerConnections.isConnectedTo(target)) {
+				peerConnections.sendMessage(target, "stopprivate");
+			}
+			break;
+		
+		// Unblock a user
+		case "unblock":
+			send(new Packet("UNBLOCK", target));
+			break;
+		
+		// Only get login/logout alerts for watched users
+		case "watch":
+			send(new Packet("WATCH", target));
+			break;
+		
+		// Stop watching a user
+		case "unwatch":
+			send(new Packet("UNWATCH", target));
+			break;
+		
+		// Send request for starting a private connection with another user
+		case "startprivate":
+			if (target.equals(username)) {
+				listener.notice("Error: Cannot start private messaging self");
+				break;
+			}
+			send(new Packet("STARTPRIVATE", target));
+			break;
+		
+		// Private message a user
+		case "private":
+			if (target.equals(username)) {
+				listener.notice("Error: Cannot private message self");
+				break;
+			}
+			message = line.replaceFirst(command + " " + target + " ", "");
+			peerConnections.sendMessage(target, message);
+			break;
+		
+		// Close a private connection with a user
+		case "stopprivate":
+			if (target.equals(username)) {
+				listener.notice("Error: Cannot start private messaging self");
+			} else if (peerConnections.isConnectedTo(target)) {
+				peerConnections.sendMessage(target, "stopprivate");
+			} else {
+				listener.notice("Error: No private connection with " + target + " yet");
+			}
+			break;
+		
+		// Logout of the system, but not close the program
+		case "logout":
+			listener.notice("Logging out...");
+			logout();
+			break;
+		
+		// Start the sequence to exit the program
+		case "exit":
+			listener.notice("Exiting the system...");
+			listener.notice("Logging out...");
+			// Send exit to server to close their end
+			exit();
+			return true;
+		
+		default:
+			listener.notice("Error: Invalid command");
+			break;
 		}
-
-
+		return false;
 	}
 	
 	/**
@@ -323,39 +527,265 @@ public class Client extends Thread {
 		int length = tokens.length;
 		boolean valid;
 		
-		List<String> commands = Arrays.asList("whoelse", "logout", "exit", 
-												"whoelsesince", "block", "unblock", 
+		List<String> commands = Arrays.asList("whoelse", "logout", "exit", "searchmore", "historymore",
+												"whoelsesince", "block", "unblock",
 												"startprivate", "stopprivate",
-												"message", "private", "broadcast");
-		List<String> format = Arrays.asList("whoelse", "logout", "exit", 
-											"whoelsesince <seconds>", 
+												"watch", "unwatch", "join", "leave",
+												"history", "historysince",
+												"message", "private", "channel", "broadcast", "search");
+		List<String> format = Arrays.asList("whoelse", "logout", "exit", "searchmore", "historymore",
+											"whoelsesince <seconds>",
 											"block <user>",
 											"unblock <user>",
 											"startprivate <user>",
 											"stopprivate <user>",
-											"message <user> <message>",
+											"watch <user>",
+											"unwatch <user>",
+											"join <channel>",
+											"leave <channel>",
+											"history <user> <count>",
+											"historysince <user> <seconds>",
+											"message <user>[,<user>...] <message>",
 											"private <user> <message>",
-											"broadcast <message>");
+											"channel <channel> <message>",
+											"broadcast <message>",
+											"search <words>");
 		
 		int index = commands.indexOf(command);
 		
 		if (index == -1) {
-			System.out.println("Error: Invalid command");
+			listener.notice("Error: Invalid command");
 			return false;
-		} else if (index <= 2) {
+		} else if (index <= 4) {
 			valid = (length == 1);
-		} else if (index <= 7) {
+		} else if (index <= 13) {
 			valid = (length == 2);
-		} else if (index <= 9) {
+		} else if (index <= 15) {
+			valid = (length == 3);
+		} else if (index <= 18) {
 			valid = (length >= 3);
 		} else {
 			valid = (length >= 2);
 		}
 		if (!valid) {
-			System.out.println("Error: Invalid use of " + command + ": " + format.get(index));
+			listener.notice("Error: Invalid use of " + command + ": " + format.get(index));
 			return false;
 		} else {
 			return true;
 		}
  	}
-}
\ No newline at end of file
+	
+	/**
+	 * Handle one packet from the server and pass it on to the listener
+	 * @param packetIn: decoded packet, only valid until this returns
+	 */
+	private void dispatch(Packet packetIn) throws IOException {
+		String type = packetIn.getType();
+		
+		// Answer the server's liveness checks whether or not the user is logged in
+		if (type.equals("PING")) {
+			send(new Packet("PONG", null));
+			return;
+		}
+		
+		// Do not process any other packets than login and logout if the user has not logged in
+		if (!(type.equals("LOGIN") || type.equals("LOGOUT")) && !loggedIn) return;
+		
+		switch(type) {
+		
+		// Receive and process login attempt status
+		case "LOGIN":
+			String loginStatus = packetIn.getPayload();
+			if (loginStatus.equals("SUCCESS")) {
+				// Send the client's port number for private messaging, 0 if it only uses the relay
+				int welcomePort = (welcomeSocket == null) ? 0 : welcomeSocket.getLocalPort();
+				send(new Packet("WELCOMEPORT", Integer.toString(welcomePort)));
+				loggedIn = true;
+				listener.loggedIn();
+			} else {
+				listener.loginFailed(loginStatus);
+			}
+			break;
+		
+		// Receive a message from another user
+		case "MESSAGE":
+			// Direct messages are numbered and have to be acknowledged, before the listener sees them
+			if (packetIn.getSeq() > 0) send(new Packet("ACK", Long.toString(packetIn.getSeq())));
+			if (traces != null && packetIn.getTrace() != null) {
+				packetIn.stamp(Trace.CLIENT_RECEIVE);
+				Trace.record(traces, packetIn.getTrace());
+			}
+			listener.message(packetIn.getSender(), packetIn.getPayload());
+			break;
+		
+		// Messages from one sender that arrived while offline, acknowledged as one
+		case "OFFLINE":
+			if (packetIn.getSeq() > 0) send(new Packet("ACK", Long.toString(packetIn.getSeq())));
+			List<String> batch = OfflineBatch.unpack(packetIn.getPayload());
+			for (String text : batch) listener.message(packetIn.getSender(), text);
+			offlineCount += batch.size();
+			if (!packetIn.isMore()) {
+				listener.caughtUp(offlineCount);
+				offlineCount = 0;
+			}
+			break;
+		
+		// Outcome for every recipient of a message sent to several users
+		case "RECEIPT":
+			Map<String, String> outcomes = new LinkedHashMap<>();
+			for (String entry : packetIn.getPayload().split("\n")) {
+				int space = entry.indexOf(' ');
+				outcomes.put(entry.substring(0, space), entry.substring(space + 1));
+			}
+			listener.receipt(outcomes);
+			break;
+		
+		// Page of the message history with another user
+		case "HISTORY":
+			listener.history(packetIn.getDest(), packetIn.getPayload(), packetIn.isMore());
+			break;
+		
+		// Page of search results, the query is the destination
+		case "SEARCH":
+			listener.searchResults(packetIn.getDest(), packetIn.getPayload(), packetIn.isMore());
+			break;
+		
+		// Receive a message sent to a channel
+		case "CHANNEL":
+			listener.channelMessage(packetIn.getDest(), packetIn.getSender(), packetIn.getPayload());
+			break;
+		
+		// The server agreed to compress packets, so compress ours as well
+		case "COMPRESS":
+			compress = packetIn.getPayload().equals(Compression.METHOD);
+			break;
+		
+		// Make a new private connection
+		// Payload contains all parameters to make the new connection
+		case "STARTPRIVATE":
+			String[] socketInfo = packetIn.getPayload().split(" ");
+			String source = socketInfo[0];
+			String target = socketInfo[1];
+			int targetPort = Integer.parseInt(socketInfo[2]);
+			InetAddress host = (socketInfo.length > 3) ? InetAddress.getByName(socketInfo[3]) : InetAddress.getLocalHost();
+			
+			if (targetPort > 0 && peerConnections.makeConnection(source, target, host, targetPort)) {
+				listener.notice("Start private messaging with " + target);
+			} else {
+				// The other user can't be reached directly, ask the server to relay instead
+				send(new Packet("RELAY", target));
+			}
+			break;
+		
+		// Join a relay the server set up for a private connection
+		// Payload contains the token, relay port, other user and whether this side starts the connection
+		case "RELAY":
+			String[] relayInfo = packetIn.getPayload().split(" ");
+			peerConnections.makeRelayConnection(ip, Integer.parseInt(relayInfo[1]), Long.parseLong(relayInfo[0]),
+					username, relayInfo[2], relayInfo[3].equals("CONNECT"));
+			break;
+		
+		// Acknowledgement for logout command
+		case "LOGOUT":
+			loggedIn = false;
+			compress = false;
+			listener.loggedOut(type);
+			break;
+		
+		// Acknowledgement for exit command
+		case "EXIT":
+			listener.loggedOut(type);
+			close();
+			break;
+		
+		// Timed out due to inactivity
+		case "TIMEOUT":
+			loggedIn = false;
+			compress = false;
+			listener.loggedOut(type);
+			break;
+		
+		// Server message including login/logout and error notifications
+		// and the digest of the users that logged in/out recently
+		case "SERVER":
+		case "PRESENCE":
+			listener.notice(packetIn.getPayload());
+			break;
+		}
+		
+		// If the user logs out, close all private connections
+		if (!loggedIn) peerConnections.closeConnections();
+	}
+	
+	/**
+	 * First stage, reads whole frames off the socket without decoding them
+	 */
+	private class Receiver extends Thread {
+		
+		private DataInputStream in;
+		
+		Receiver(DataInputStream in) {
+			this.in = in;
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					byte[] frame = new byte[Packet.checkLength(in.readInt())];
+					in.readFully(frame);
+					received.put(frame);
+				}
+			} catch (IOException | InterruptedException e) {
+				// The connection has ended, or sent a frame that can't be read in sync, which is handled the same
+			}
+			try {
+				received.put(LOST);
+			} catch (InterruptedException e) {
+				// Closing anyway
+			}
+		}
+	}
+	
+	/**
+	 * Second stage, decodes frames and passes them to the listener in the order they arrived
+	 */
+	private class Decoder extends Thread {
+		
+		Decoder() {
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			// The packet is reused for every frame
+			Packet packet = new Packet(null, null);
+			while (!closed) {
+				try {
+					byte[] frame = received.take();
+					if (frame == LOST) {
+						if (closed) break;
+						if (!reconnect()) {
+							listener.disconnected();
+							close();
+						}
+						continue;
+					}
+					packet.readFrom(frame, frame.length, names);
+					packet.decompress(compression);
+					dispatch(packet);
+				} catch (InterruptedException e) {
+					break;
+				} catch (IOException e) {
+					// A failed write shows up as a lost connection on the receive side, a payload that
+					// couldn't be decompressed is dropped
+				} catch (RuntimeException e) {
+					// A bad packet or a failing listener only loses this packet, not the decode thread
+					System.err.println("Error handling packet " + packet.getType() + ": " + e);
+				}
+			}
+		}
+	}
+	
+}
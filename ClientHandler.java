@@ -2,18 +2,52 @@ import java.io.*;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.net.*;
+import javax.net.ssl.SSLException;
 
 class ClientHandler extends Thread {
 	
 	private Server server;
 	private Socket s;
-	private ObjectInputStream in;
-	private ObjectOutputStream out;
+	private DataInputStream in;
+	private Outbox outbox;
 	private String username;
 	private User user;
 	private int welcomePort;
 	private Debug debug = new Debug();
+	private Compression compression = new Compression();
+	
+	// Number of messages sent in each history packet
+	private static final int HISTORY_PAGE = 20;
+	// Most messages one history request reaches back, read a page at a time
+	private static final int MAX_HISTORY = 1000;
+	// Number of hits in each search results packet
+	private static final int SEARCH_PAGE = 10;
+	// Most users one message can be sent to, also bounded by the message rate limit when that is on
+	private static final int MAX_RECIPIENTS = 20;
+	
+	// Messages that have been sent but not acknowledged by the client yet
+	private static final int WINDOW = 32;
+	private Object window = new Object();
+	private Map<Long, Packet> inFlight = new LinkedHashMap<>();
+	private Deque<Packet> pending = new ArrayDeque<>();
+	private User receiver;
+	private long nextSeq = 1;
+	
+	// Where the last history request got to, so the client can ask for the next page
+	private HistoryLog.Cursor historyCursor;
+	private String historyUser;
+	private String historyTarget;
+	
+	// Packets the client sends by itself, which don't keep an idle user logged in
+	private static final Set<String> AUTOMATIC = new HashSet<>(Arrays.asList("PING", "PONG", "ACK", "WELCOMEPORT"));
+	
+	// Times in milliseconds, checked by the server's heartbeat thread
+	private volatile long lastHeard;
+	private volatile long lastActive;
+	private volatile long lastPing;
 	
 	/**
 	 * Thread to handle 1 client for the server
@@ -22,229 +56,500 @@ class ClientHandler extends Thread {
 	 * @param in: inputStream
 	 * @param out: outputStream
 	 */
-	public ClientHandler (Server server, Socket s, ObjectInputStream in, ObjectOutputStream out) {
+	public ClientHandler (Server server, Socket s, DataInputStream in, DataOutputStream out) {
 		this.server = server;
 		this.s = s;
 		this.in = in;
-		this.out = out;
+		this.outbox = new Outbox(server, s, out);
 		this.username = null;
 		this.user = null;
+		this.lastHeard = System.currentTimeMillis();
+		this.lastActive = lastHeard;
+		this.lastPing = 0;
 		debug.set(server.getDebug());
 	}
 	
 	@Override
 	public void run() {
-		Packet received = null;
-		Packet toReturn;
-		String[] tokens;
-		String target;
+		try {
+			serveRequests();
+		} finally {
+			// Also reached when a request throws an Error, which the request loop doesn't catch
+			if (user != null) {
+				try {
+					onOwner(getUserId(), this::forceClosed);
+				} catch (Exception e) {
+					debug.print(e.getMessage());
+				}
+			}
+			try {
+				this.in.close();
+				outbox.abort();
+			} catch (Exception e) {
+				debug.print(e.getMessage());
+			}
+			// Finished sessions would otherwise stay reachable from the server for as long as it runs
+			server.removeClient(this);
+		}
+	}
+	
+	/**
+	 * Read and handle requests until the client exits or the connection is lost
+	 */
+	private void serveRequests() {
+		// The received packet and its buffer are reused for every request
+		Packet received = new Packet(null, null);
+		FrameReader reader = new FrameReader(in, server.getNames());
 		boolean exitStatus = false;
+		outbox.start();
 		
 		while (!exitStatus) {
 			
 			try {
 				
 				// Receive the packet and extract general data
-				received = (Packet) in.readObject();
-				server.lock();
-				String type = received.getType();
-				debug.print("Received packet type: " + type);
-				String payload = received.getPayload();
+				reader.read(received);
+				received.stamp(Trace.SERVER_RECEIVE);
+				received.decompress(compression);
 				
-				switch(type) {
+				// Any packet shows the connection is alive, but only requests the user made count as activity
+				long now = System.currentTimeMillis();
+				lastHeard = now;
+				if (received.getType().equals("PONG")) continue;
+				if (received.getType().equals("PING")) {
+					send(new Packet("PONG", null));
+					continue;
+				}
+				if (!AUTOMATIC.contains(received.getType())) lastActive = now;
 				
-				case "LOGIN":
-					tokens = payload.split(" ");
-					
-					// Get the appropriate attempt login status
-					String loginStatus = checkCredentials(tokens[0], tokens[1]);
-					toReturn = new Packet("LOGIN", loginStatus);
-					out.writeObject(toReturn);
-					
-					// If the login succeeded, initialize timeout and send offline messages
-					if (loginStatus.equals("SUCCESS")) {
-						s.setSoTimeout((int)server.getTimeout()*1000);
-						user = server.getUser(username);
-						user.goOnline();
-						server.broadcast(username, username + " logged in", "SERVER");
-						List<Packet> messages = user.getMessages();
-						for (Packet p : messages) out.writeObject(p);
-						user.clearMessges();
-					}
-					break;
-					
-				case "WELCOMEPORT":
-					// For registering the port number of a client
-					int portNo = Integer.parseInt(payload);
-					welcomePort = portNo; 
-					break;
+				// Turn the packet away before taking any lock if the sender or server is over its limit,
+				// a message to several users takes a token for each different one, up to the most it may name
+				int cost = 1;
+				if (received.getDests() != null) {
+					int distinct = new HashSet<>(Arrays.asList(received.getDests())).size();
+					cost = Math.max(1, Math.min(MAX_RECIPIENTS, distinct));
+				}
+				String rejected = server.getLimiter().check(user, received.getType(), cost);
+				if (rejected != null) {
+					send(new Packet("SERVER", rejected));
+					continue;
+				}
 				
-				case "MESSAGE":
-					target = received.getDest();
-					User destination = server.getUser(target);
-					
-					// Check all other variables before sending message to user
-					if (target.equals(username)) {
-						toReturn = new Packet("SERVER", "Error: Cannot message yourself");
-						out.writeObject(toReturn);
-					} else if (destination == null) {
-						toReturn = new Packet("SERVER", "Error: Invalid User");
-						out.writeObject(toReturn);
-					} else if (!destination.isOnline()) {
-						toReturn = new Packet("MESSAGE", received.getPayload());
-						toReturn.setSender(username);
-						destination.addMessage(toReturn);
-					} else if (destination.hasBlocked(username)) {
-						toReturn = new Packet("SERVER", "Your message could not be delivered as the recipient has blocked you");
-						out.writeObject(toReturn);
-					} else {
-						server.getClient(target).sendMessage(username, payload, "MESSAGE");;
-					}
-					break;
+				// Channel messages only go to subscribers so they don't need the server lock
+				if (received.getType().equals("CHANNEL")) {
+					channelMessage(received);
+					continue;
+				}
 				
-				case "BROADCAST":
-					broadcast("MESSAGE", payload);
-					break;
-					
-				case "WHOELSE":
-					String onlineUsers = server.getOnlineUsers(username, null);
-					out.writeObject(new Packet("SERVER", onlineUsers));
-					break;
-					
-				case "WHOELSESINCE":
-					long diff = Long.parseLong(payload);
-					LocalDateTime then = LocalDateTime.now().minus(diff, ChronoUnit.SECONDS);
-					String pastOnlineUsers = server.getOnlineUsers(username, then);
-					out.writeObject(new Packet("SERVER", pastOnlineUsers));
-					break;
-					
-				case "BLOCK":
-					target = payload;
-					toReturn = new Packet("SERVER", null);
-					
-					// Check other variables first and send error if needed
-					if (!server.userExists(target)) {
-						toReturn.setPayload("Error: Invalid User");
-					} else if (target.equals(username)) {
-						toReturn.setPayload("Error: Cannot block/unblock self");
-					} else if (user.hasBlocked(target)) {
-						toReturn.setPayload("Error: " + target + " is already blocked");
-					} else {
-						user.blockUser(target);
-						toReturn.setPayload(target + " is blocked");
-					}
-					out.writeObject(toReturn);
-					break;
-					
-				case "UNBLOCK":
-					target = payload;
-					toReturn = new Packet("SERVER", null);
-					
-					// Check other variables first and send error if needed
-					if (!server.userExists(target)) {
-						toReturn.setPayload("Error: Invalid user");
-					} else if (target.equals(username)) {
-						toReturn.setPayload("Error: Cannot block/unblock self");
-					} else if (!user.hasBlocked(target)) {
-						toReturn.setPayload("Error: " + target + " was not blocked");
-					} else {
-						user.unblockUser(target);
-						toReturn.setPayload(target + " is unblocked");
-					}
-					out.writeObject(toReturn);
-					break;
-					
-				case "STARTPRIVATE":
-					target = payload;
-					// Get the port and username data from the server to send
-					int port = server.getPort(target);
-					String socketInfo = username + " " + target + " " + Integer.toString(port);
-					
-					// If the user has blocked the requester, cannot initialise private messagning
-					if (target.equals(username)) {
-						toReturn = new Packet("SERVER", "Error: Cannot private message self");
-					}else if (server.hasBlocked(username, target)) {
-						toReturn = new Packet("SERVER", "Error: " + target + " has blocked you. Cannot start private messaging");
-					} else {
-						toReturn = new Packet ("STARTPRIVATE", socketInfo);
-					}
-					out.writeObject(toReturn);
-					break;	
+				// Acknowledgements only touch this session
+				if (received.getType().equals("ACK")) {
+					acknowledge(received.getPayloadLong());
+					continue;
+				}
 				
-					
-				case "LOGOUT":
-					user.goOffline();
-					// Sending logout acknowledgement
-					out.writeObject(new Packet("LOGOUT", null));
-					// Notify other users
-					server.broadcast(username, username + " logged out", "SERVER");
-					this.username = null;
-					this.user = null;
-					// Turn off the timeout
-					s.setSoTimeout(0);
-					break;
-					
-				case "EXIT":
-					debug.print("Client " + this.s + " sends exit...");
-					debug.print("Closing this connection");
-					user.goOffline();
-					// Sending exit acknowledgement
-					out.writeObject(new Packet("EXIT", null));
-					Thread.sleep(100);
-					this.s.close();
-					Thread.sleep(100);
-					debug.print("Connection closed");
-					// Notify other users
-					server.broadcast(username, username + " logged out", "SERVER");
-					exitStatus = true;
-					this.username = null;
-					this.user = null;
-					break;	
-
-				default:
-					out.writeObject(new Packet("ERROR", null));
-					break;
+				// History is read from its own store, also without the server lock
+				if (received.getType().startsWith("HISTORY")) {
+					history(received);
+					continue;
 				}
-				server.unlock();
 				
-			} catch (SocketTimeoutException timeout) {
-				// Timeout due to client inactivity
-				user.goOffline();
-				server.broadcast(username, username + " logged out", "SERVER");
-				toReturn = new Packet("TIMEOUT", null);
-				this.username = null;
-				this.user = null;
-				try {
-					s.setSoTimeout(0);
-					out.writeObject(toReturn);
-				} catch (IOException e) {
-					debug.print(e.getMessage());
+				// So is search, which reads the index
+				if (received.getType().equals("SEARCH")) {
+					search(received);
+					continue;
 				}
+				// Everything else runs under the server lock, or on the shard that owns the user
+				int owner = received.getType().equals("LOGIN") ? server.getId(received.getPayloadToken(0)) : getUserId();
+				exitStatus = onOwner(owner, () -> handle(received));
+				if (exitStatus) closeAfterExit();
 				
-			} catch (SocketException forceClose) {
-				if (username == null) {
-					debug.print("Client force closed");
-				} else {
-					debug.print("User " + username + " force closed");
-					user.goOffline();
+			} catch (SocketException | EOFException | SSLException | ProtocolException forceClose) {
+				// A bad frame leaves the stream out of sync, so it is dropped like a closed socket
+				if (forceClose instanceof ProtocolException) debug.print("Client " + s + ": " + forceClose.getMessage());
+				try {
+					onOwner(getUserId(), this::forceClosed);
+				} catch (Exception e) {
+					debug.print(e.getMessage());
 				}
-				this.username = null;
-				this.user = null;
 				break;
 				
 			} catch (Exception e) {
 				debug.print(e.getMessage());
 			}
 		}
+	}
+	
+	/**
+	 * Handle one request from the client
+	 * @param received: request, only valid until this returns
+	 * @return true if the client has exited
+	 */
+	private boolean handle(Packet received) throws Exception {
+		Packet toReturn;
+		String target;
+		int targetId;
+		boolean exitStatus = false;
+		received.stamp(Trace.LOCK_ACQUIRED);
+		String type = received.getType();
+		if (debug.on) debug.print("Received packet type: " + type);
+		
+		switch(type) {
 		
+		case "LOGIN":
+			// Get the appropriate attempt login status
+			String loginStatus = checkCredentials(received.getPayloadToken(0), received.getPayloadToken(1));
+			toReturn = new Packet("LOGIN", loginStatus);
+			send(toReturn);
+			
+			// If the login succeeded, turn on compression if the client asked for it and send offline messages
+			if (loginStatus.equals("SUCCESS")) {
+				if (server.allowsCompression() && Compression.METHOD.equals(received.getPayloadToken(2))) {
+					send(new Packet("COMPRESS", Compression.METHOD));
+					outbox.setCompression(compression);
+				}
+				
+				user = server.getUser(username);
+				user.goOnline();
+				server.presence(user.getId(), true);
+				
+				// Register the session and collect the offline messages together so
+				// channel messages sent at the same time are not missed
+				List<Packet> messages;
+				synchronized (user) {
+					startDelivery(user);
+					server.addSession(user.getId(), this);
+					messages = user.takeMessages();
+				}
+				// Direct messages are replayed in batches, each taking one place in the window
+				List<Packet> direct = new ArrayList<>();
+				for (Packet p : messages) {
+					if (p.getType().equals("MESSAGE")) direct.add(p);
+					else send(p);
+				}
+				if (server.batchesOffline()) {
+					for (Packet batch : OfflineBatch.pack(direct)) deliver(user, batch);
+				} else {
+					for (Packet p : direct) deliver(user, p);
+				}
+			}
+			break;
+			
+		case "WELCOMEPORT":
+			// For registering the port number of a client
+			int portNo = (int)received.getPayloadLong();
+			welcomePort = portNo; 
+			break;
+		
+		case "MESSAGE":
+			// A message to several users is resolved in one go and answered with one receipt
+			if (received.getDests() != null) {
+				multiMessage(received.getDests(), received.getPayload());
+				break;
+			}
+			target = received.getDest();
+			User destination = server.getUser(target);
+			
+			// Check all other variables before sending message to user
+			if (destination == user) {
+				toReturn = new Packet("SERVER", "Error: Cannot message yourself");
+				send(toReturn);
+			} else if (destination == null) {
+				toReturn = new Packet("SERVER", "Error: Invalid User");
+				send(toReturn);
+			} else {
+				// The destination's session and offline queue belong to its shard
+				User sender = user;
+				String message = received.getPayload();
+				long[] trace = received.getTrace();
+				server.post(destination.getId(), () -> {
+					if (directMessage(sender, destination, message, trace).equals("BLOCKED")) {
+						sendNotice("Your message could not be delivered as the recipient has blocked you");
+					}
+				});
+			}
+			break;
+		
+		case "BROADCAST":
+			broadcast("MESSAGE", received.getPayload());
+			break;
+			
+		case "WHOELSE":
+			String onlineUsers = server.getOnlineUsers(user.getId(), null);
+			send(new Packet("SERVER", onlineUsers));
+			break;
+			
+		case "WHOELSESINCE":
+			long diff = received.getPayloadLong();
+			LocalDateTime then = LocalDateTime.now().minus(diff, ChronoUnit.SECONDS);
+			String pastOnlineUsers = server.getOnlineUsers(user.getId(), then);
+			send(new Packet("SERVER", pastOnlineUsers));
+			break;
+			
+		case "BLOCK":
+			target = received.getPayload();
+			targetId = server.getId(target);
+			toReturn = new Packet("SERVER", null);
+			
+			// Check other variables first and send error if needed
+			if (targetId == -1) {
+				toReturn.setPayload("Error: Invalid User");
+			} else if (targetId == user.getId()) {
+				toReturn.setPayload("Error: Cannot block/unblock self");
+			} else if (user.hasBlocked(targetId)) {
+				toReturn.setPayload("Error: " + target + " is already blocked");
+			} else {
+				server.blockUser(user, targetId);
+				toReturn.setPayload(target + " is blocked");
+			}
+			send(toReturn);
+			break;
+			
+		case "UNBLOCK":
+			target = received.getPayload();
+			targetId = server.getId(target);
+			toReturn = new Packet("SERVER", null);
+			
+			// Check other variables first and send error if needed
+			if (targetId == -1) {
+				toReturn.setPayload("Error: Invalid user");
+			} else if (targetId == user.getId()) {
+				toReturn.setPayload("Error: Cannot block/unblock self");
+			} else if (!user.hasBlocked(targetId)) {
+				toReturn.setPayload("Error: " + target + " was not blocked");
+			} else {
+				server.unblockUser(user, targetId);
+				toReturn.setPayload(target + " is unblocked");
+			}
+			send(toReturn);
+			break;
+			
+		case "WATCH":
+			target = received.getPayload();
+			targetId = server.getId(target);
+			toReturn = new Packet("SERVER", null);
+			
+			// Only receive login/logout alerts for watched users
+			if (targetId == -1) {
+				toReturn.setPayload("Error: Invalid user");
+			} else if (targetId == user.getId()) {
+				toReturn.setPayload("Error: Cannot watch/unwatch self");
+			} else if (user.isWatching(targetId)) {
+				toReturn.setPayload("Error: " + target + " is already watched");
+			} else {
+				user.watchUser(targetId);
+				toReturn.setPayload("Watching " + target);
+			}
+			send(toReturn);
+			break;
+			
+		case "UNWATCH":
+			target = received.getPayload();
+			targetId = server.getId(target);
+			toReturn = new Packet("SERVER", null);
+			
+			if (targetId == -1) {
+				toReturn.setPayload("Error: Invalid user");
+			} else if (targetId == user.getId()) {
+				toReturn.setPayload("Error: Cannot watch/unwatch self");
+			} else if (!user.isWatching(targetId)) {
+				toReturn.setPayload("Error: " + target + " was not watched");
+			} else {
+				user.unwatchUser(targetId);
+				toReturn.setPayload("Stopped watching " + target);
+			}
+			send(toReturn);
+			break;
+			
+		case "JOIN":
+			target = received.getPayload();
+			if (server.getChannel(target, true).join(user.getId())) {
+				toReturn = new Packet("SERVER", "Joined channel " + target);
+			} else {
+				toReturn = new Packet("SERVER", "Error: Already in channel " + target);
+			}
+			send(toReturn);
+			break;
+			
+		case "LEAVE":
+			target = received.getPayload();
+			Channel channel = server.getChannel(target, false);
+			if (channel != null && channel.leave(user.getId())) {
+				toReturn = new Packet("SERVER", "Left channel " + target);
+			} else {
+				toReturn = new Packet("SERVER", "Error: Not in channel " + target);
+			}
+			send(toReturn);
+			break;
+			
+		case "STARTPRIVATE":
+			target = received.getPayload();
+			targetId = server.getId(target);
+			// Get the port, address and username data from the server to send
+			int port = server.getPort(targetId);
+			InetAddress address = server.getAddress(targetId);
+			String socketInfo = username + " " + target + " " + Integer.toString(port);
+			if (address != null) socketInfo = socketInfo + " " + address.getHostAddress();
+			
+			// If the user has blocked the requester, cannot initialise private messagning
+			if (targetId == user.getId()) {
+				toReturn = new Packet("SERVER", "Error: Cannot private message self");
+			}else if (server.hasBlocked(user.getId(), targetId)) {
+				toReturn = new Packet("SERVER", "Error: " + target + " has blocked you. Cannot start private messaging");
+			} else {
+				toReturn = new Packet ("STARTPRIVATE", socketInfo);
+			}
+			send(toReturn);
+			break;	
+		
+		case "RELAY":
+			// The direct connection failed, so both users join a relay on the server instead
+			target = received.getPayload();
+			targetId = server.getId(target);
+			ClientHandler peer = server.getClient(targetId);
+			if (targetId == user.getId()) {
+				toReturn = new Packet("SERVER", "Error: Cannot private message self");
+			} else if (peer == null) {
+				toReturn = new Packet("SERVER", "Error: " + target + " is not online");
+			} else if (server.hasBlocked(user.getId(), targetId)) {
+				toReturn = new Packet("SERVER", "Error: " + target + " has blocked you. Cannot start private messaging");
+			} else {
+				// Payload: token, relay port, other user and which side starts the private connection
+				long token = server.getRelay().open(username, target);
+				String relayInfo = token + " " + server.getRelay().getPort();
+				peer.send(new Packet("RELAY", relayInfo + " " + username + " ACCEPT"));
+				toReturn = new Packet("RELAY", relayInfo + " " + target + " CONNECT");
+			}
+			send(toReturn);
+			break;
+			
+		case "LOGOUT":
+			stopDelivery();
+			user.goOffline();
+			// Sending logout acknowledgement
+			send(new Packet("LOGOUT", null));
+			// Notify other users
+			server.presence(user.getId(), false);
+			server.removeSession(getUserId());
+			this.username = null;
+			this.user = null;
+			break;
+			
+		case "EXIT":
+			debug.print("Client " + this.s + " sends exit...");
+			debug.print("Closing this connection");
+			stopDelivery();
+			user.goOffline();
+			// Sending exit acknowledgement, the connection is closed by run once the lock is released
+			send(new Packet("EXIT", null));
+			// Notify other users
+			server.presence(user.getId(), false);
+			exitStatus = true;
+			server.removeSession(getUserId());
+			this.username = null;
+			this.user = null;
+			break;	
+
+		default:
+			send(new Packet("ERROR", null));
+			break;
+		}
+		return exitStatus;
+	}
+	
+	/**
+	 * Give the exit acknowledgement time to reach the client, then close the connection
+	 * This blocks, so it runs on the handler thread after the server lock (or the shard) is released.
+	 */
+	private void closeAfterExit() throws IOException, InterruptedException {
+		outbox.drain(1000);
+		this.s.close();
+		Thread.sleep(100);
+		debug.print("Connection closed");
+	}
+	
+	/**
+	 * Log the user out after too long without a request
+	 */
+	private Void timedOut() {
+		stopDelivery();
+		user.goOffline();
+		server.presence(user.getId(), false);
+		Packet toReturn = new Packet("TIMEOUT", null);
+		server.removeSession(getUserId());
+		this.username = null;
+		this.user = null;
+		try {
+			send(toReturn);
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		}
+		return null;
+	}
+	
+	/**
+	 * Check the connection and the user's activity, called by the heartbeat thread
+	 * @param now: current time in milliseconds
+	 * @param pingAfter: milliseconds of silence before the client is pinged
+	 * @param deadAfter: milliseconds of silence before the connection is closed
+	 * @param idleTimeout: milliseconds without a request before the user is logged out, 0 to never log out idle users
+	 */
+	public void checkLiveness(long now, long pingAfter, long deadAfter, long idleTimeout) {
+		long silent = now - lastHeard;
+		if (silent >= deadAfter) {
+			// The handler sees the closed socket as a force close and logs the user out
+			debug.print("Client " + s + " stopped answering pings, closing the connection");
+			server.getMetrics().increment("heartbeat.dead");
+			outbox.abort();
+			return;
+		}
 		try {
-			this.in.close();
-			this.out.close();
+			// Checked again with the lock held in case a request came in meanwhile
+			if (idleTimeout > 0 && user != null && now - lastActive >= idleTimeout) {
+				onOwner(getUserId(), () -> (user != null && System.currentTimeMillis() - lastActive >= idleTimeout) ? timedOut() : null);
+			}
+			if (silent >= pingAfter && now - lastPing >= pingAfter) {
+				lastPing = now;
+				send(new Packet("PING", null));
+			}
 		} catch (Exception e) {
 			debug.print(e.getMessage());
 		}
 	}
 	
+	/**
+	 * Clean up after the client closed the connection without exiting
+	 */
+	private Void forceClosed() {
+		if (username == null) {
+			debug.print("Client force closed");
+		} else {
+			debug.print("User " + username + " force closed");
+			stopDelivery();
+			user.goOffline();
+		}
+		server.removeSession(getUserId());
+		this.username = null;
+		this.user = null;
+		return null;
+	}
+	
+	/**
+	 * Run part of a request with the server lock held, or on the shard that owns the user if the server is sharded
+	 * @param owner: ID of the user the request is about, -1 if there isn't one
+	 * @param task: work to be done
+	 * @return the result of the task
+	 */
+	private <T> T onOwner(int owner, Callable<T> task) throws Exception {
+		Shard shard = server.getShard(owner);
+		if (shard != null) return shard.call(task);
+		server.lock();
+		try {
+			return task.call();
+		} finally {
+			server.unlock();
+		}
+	}
+	
 	/**
 	 * Get the username of this thread's account
 	 */
@@ -252,13 +557,379 @@ class ClientHandler extends Thread {
 		return username;
 	}
 	
+	/**
+	 * Get the ID of this thread's account
+	 * @return the ID, -1 if nobody is logged in
+	 */
+	public int getUserId() {
+		return (user == null) ? -1 : user.getId();
+	}
+	
 	/**
 	 * Send broadcast message to all other active users
 	 * @param type: either MESSAGE or SERVER notifcation e.g. login
 	 * @param message: message to be broadcasted
 	 */
 	public void broadcast(String type, String message) {
-		server.broadcast(this.username, message, type);
+		server.broadcast(user.getId(), message, type);
+	}
+	
+	/**
+	 * Send a message to all subscribers of a channel
+	 * @param received: CHANNEL packet with the channel as the destination
+	 */
+	private void channelMessage(Packet received) {
+		try {
+			User sender = user;
+			if (sender == null) return;
+			Channel channel = server.getChannel(received.getDest(), false);
+			if (channel == null || !channel.isSubscribed(sender.getId())) {
+				send(new Packet("SERVER", "Error: Not in channel " + received.getDest()));
+			} else {
+				channel.publish(server, sender, received.getPayload());
+			}
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Send a direct message that the client has to acknowledge
+	 * At most WINDOW messages are unacknowledged at a time, the rest wait until ACKs arrive.
+	 * If the session has already ended the message goes to the offline queue instead.
+	 * @param dest: user the message is for
+	 * @param packet: message to be sent
+	 */
+	public void deliver(User dest, Packet packet) {
+		synchronized (window) {
+			if (receiver == null) {
+				requeue(dest, packet);
+			} else if (inFlight.size() >= WINDOW) {
+				pending.add(packet);
+			} else {
+				transmit(packet);
+			}
+		}
+	}
+	
+	/**
+	 * Handle an ACK from the client and send waiting messages into the free space
+	 * @param seq: sequence number of the acknowledged message
+	 */
+	private void acknowledge(long seq) {
+		synchronized (window) {
+			inFlight.remove(seq);
+			while (inFlight.size() < WINDOW && !pending.isEmpty()) transmit(pending.poll());
+		}
+	}
+	
+	/**
+	 * Number and send a message, keeping it until it is acknowledged
+	 * If the write fails it stays in flight and is requeued when the session ends
+	 */
+	private void transmit(Packet packet) {
+		packet.setSeq(nextSeq++);
+		inFlight.put(packet.getSeq(), packet);
+		if (packet.getTrace() != null) {
+			packet.stamp(Trace.ENQUEUED);
+			Trace.record(server.getMetrics(), packet.getTrace());
+		}
+		try {
+			send(packet);
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Start tracking deliveries for a user that has logged in
+	 */
+	private void startDelivery(User u) {
+		synchronized (window) {
+			receiver = u;
+		}
+	}
+	
+	/**
+	 * End tracking deliveries, putting every unacknowledged message back in the offline queue
+	 */
+	private void stopDelivery() {
+		synchronized (window) {
+			if (receiver == null) return;
+			for (Packet p : inFlight.values()) requeue(receiver, p);
+			for (Packet p : pending) requeue(receiver, p);
+			if (!inFlight.isEmpty() || !pending.isEmpty()) {
+				debug.print("Requeued " + (inFlight.size() + pending.size()) + " unacknowledged messages");
+			}
+			inFlight.clear();
+			pending.clear();
+			receiver = null;
+		}
+	}
+	
+	/**
+	 * Put a message that wasn't acknowledged back in the offline queue, a batch as its messages
+	 */
+	private void requeue(User u, Packet packet) {
+		if (packet.getType().equals("OFFLINE")) {
+			for (Packet p : OfflineBatch.split(packet)) u.addMessage(p);
+		} else {
+			packet.setSeq(0);
+			u.addMessage(packet);
+		}
+	}
+	
+	/**
+	 * Send the history with another user back to the client a page at a time
+	 * HISTORY has the number of messages as the payload, HISTORYSINCE the number of seconds,
+	 * either reaching back at most MAX_HISTORY messages. Only the first page is sent, marked with
+	 * more if there are others, and HISTORYMORE asks for the next one.
+	 * @param received: request with the other user as the destination
+	 */
+	private void history(Packet received) {
+		try {
+			if (username == null) return;
+			String target = received.getDest();
+			HistoryStore store = server.getHistory();
+			if (store == null) {
+				send(new Packet("SERVER", "Error: Message history is not enabled"));
+				return;
+			} else if (!server.userExists(target) || target.equals(username)) {
+				send(new Packet("SERVER", "Error: Invalid user"));
+				return;
+			}
+			
+			HistoryLog log = store.getLog(username, target);
+			switch (received.getType()) {
+			case "HISTORY":
+				historyCursor = log.last((int)Math.min(MAX_HISTORY, received.getPayloadLong()));
+				break;
+			case "HISTORYSINCE":
+				historyCursor = log.since(System.currentTimeMillis() - received.getPayloadLong() * 1000, MAX_HISTORY);
+				break;
+			default:
+				// The cursor belongs to the user and conversation it was made for
+				if (historyCursor == null || !username.equals(historyUser) || !target.equals(historyTarget)) {
+					send(new Packet("SERVER", "Error: No history with " + target + " to continue"));
+					return;
+				}
+			}
+			historyUser = username;
+			historyTarget = target;
+			
+			List<String> messages = log.next(historyCursor, HISTORY_PAGE);
+			if (messages.isEmpty()) {
+				historyCursor = null;
+				send(new Packet("SERVER", "No messages with " + target));
+				return;
+			}
+			Packet page = new Packet("HISTORY", String.join("\n", messages));
+			page.setDest(target);
+			page.setMore(historyCursor.hasMore());
+			if (!historyCursor.hasMore()) historyCursor = null;
+			send(page);
+		} catch (Exception e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Send the messages this client's user sent or received that contain every word of a query
+	 * The payload is the page followed by the query, the reply has the query as the destination
+	 * and is marked with more if there is a next page.
+	 * @param received: search request
+	 */
+	private void search(Packet received) {
+		try {
+			if (username == null) return;
+			SearchIndex index = server.getSearch();
+			if (index == null) {
+				send(new Packet("SERVER", "Error: Message search is not enabled"));
+				return;
+			}
+			String payload = received.getPayload();
+			int split = (payload == null) ? -1 : payload.indexOf(' ');
+			if (split == -1) {
+				send(new Packet("SERVER", "Error: Invalid search"));
+				return;
+			}
+			int page = Math.max(1, Integer.parseInt(payload.substring(0, split)));
+			String query = payload.substring(split + 1);
+			
+			List<String> hits = index.search(user.getId(), query, page, SEARCH_PAGE);
+			if (hits.isEmpty()) {
+				send(new Packet("SERVER", (page == 1) ? "No messages match " + query : "No more messages match " + query));
+				return;
+			}
+			Packet results = new Packet("SEARCH", String.join("\n", hits.subList(0, Math.min(hits.size(), SEARCH_PAGE))));
+			results.setDest(query);
+			results.setMore(hits.size() > SEARCH_PAGE);
+			send(results);
+		} catch (Exception e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Deliver a message from this client's user, or queue it if the destination is offline
+	 * Runs on the shard that owns the destination when the server is sharded
+	 * @param sender: user that sent the message
+	 * @param destination: user the message is for
+	 * @param message: body
+	 * @param trace: stamps of the request if it is traced, carried on to the recipient
+	 * @return DELIVERED, QUEUED if the destination is offline or BLOCKED
+	 */
+	private String directMessage(User sender, User destination, String message, long[] trace) {
+		Packet packet = new Packet("MESSAGE", message);
+		packet.setSender(sender.getUsername());
+		packet.setTrace(trace);
+		if (!destination.isOnline()) {
+			destination.addMessage(packet);
+			recordHistory(sender, destination, message);
+			return "QUEUED";
+		} else if (destination.hasBlocked(sender.getId())) {
+			return "BLOCKED";
+		} else {
+			server.getClient(destination.getId()).deliver(destination, packet);
+			recordHistory(sender, destination, message);
+			return "DELIVERED";
+		}
+	}
+	
+	/**
+	 * Send one message to several users and answer with a single RECEIPT
+	 * The recipients are grouped by the shard that owns them and each group is delivered in one
+	 * task, the last task to finish sends the receipt. Without shards it all runs under the lock
+	 * the request already holds.
+	 * @param targets: usernames of the recipients, duplicates are only sent to once
+	 * @param message: body
+	 */
+	private void multiMessage(String[] targets, String message) throws IOException {
+		User sender = user;
+		String[] names = new LinkedHashSet<>(Arrays.asList(targets)).toArray(new String[0]);
+		if (names.length > MAX_RECIPIENTS) {
+			send(new Packet("SERVER", "Error: A message can be sent to at most " + MAX_RECIPIENTS + " users"));
+			return;
+		}
+		String[] outcomes = new String[names.length];
+		Map<Shard, List<Integer>> groups = new HashMap<>();
+		for (int i = 0; i < names.length; i++) {
+			User destination = server.getUser(names[i]);
+			if (destination == null || destination == sender) outcomes[i] = "INVALID";
+			else groups.computeIfAbsent(server.getShard(destination.getId()), k -> new ArrayList<>()).add(i);
+		}
+		if (groups.isEmpty()) {
+			sendReceipt(names, outcomes);
+			return;
+		}
+		
+		AtomicInteger remaining = new AtomicInteger(groups.size());
+		for (List<Integer> group : groups.values()) {
+			server.post(server.getId(names[group.get(0)]), () -> {
+				for (int i : group) outcomes[i] = directMessage(sender, server.getUser(names[i]), message, null);
+				if (remaining.decrementAndGet() == 0) sendReceipt(names, outcomes);
+			});
+		}
+	}
+	
+	/**
+	 * Send the outcome for every recipient of a message, one "user OUTCOME" line each
+	 */
+	private void sendReceipt(String[] names, String[] outcomes) {
+		StringBuilder receipt = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) receipt.append('\n');
+			receipt.append(names[i]).append(' ').append(outcomes[i]);
+		}
+		try {
+			send(new Packet("RECEIPT", receipt.toString()));
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Send a SERVER notice from a task that can't throw
+	 */
+	private void sendNotice(String text) {
+		try {
+			send(new Packet("SERVER", text));
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Add a delivered or queued message to the history and the search index, if they are enabled
+	 * Indexing is only queued here, the index is updated on its own thread.
+	 * @param sender: user that sent the message
+	 * @param target: user the message was sent to
+	 * @param message: body
+	 */
+	private void recordHistory(User sender, User target, String message) {
+		SearchIndex index = server.getSearch();
+		if (index != null) index.add(sender.getId(), target.getId(), message);
+		HistoryStore store = server.getHistory();
+		if (store == null) return;
+		try {
+			store.record(sender.getUsername(), target.getUsername(), message);
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Write a packet to the client connected to this thread
+	 * Packets are queued in the session's outbox, so this never waits for the client to read.
+	 * Replies go ahead of direct messages, which go ahead of fan-out and history pages.
+	 * @param packet: packet to be sent
+	 */
+	public void send(Packet packet) throws IOException {
+		Frame frame = Frame.of(packet);
+		try {
+			outbox.offer(frame, Outbox.priorityOf(packet.getType()), false);
+		} finally {
+			frame.release();
+		}
+	}
+	
+	/**
+	 * Write an already encoded frame to the client connected to this thread
+	 * Used for fan-out so the packet is only encoded once for every recipient
+	 * @param frame: frame to be sent, the caller keeps its reference
+	 */
+	public void send(Frame frame) throws IOException {
+		outbox.offer(frame, Outbox.BULK, false);
+	}
+	
+	/**
+	 * Write a broadcast or channel frame, which is dropped if this client is lagging
+	 * @param frame: frame to be sent, the caller keeps its reference
+	 * @return true if the frame was queued
+	 */
+	public boolean sendBulk(Frame frame) throws IOException {
+		return outbox.offer(frame, Outbox.BULK, true);
+	}
+	
+	/**
+	 * Close the connection once everything queued for the client has been written
+	 * The thread then goes through the force close path, so unacknowledged messages are requeued.
+	 * @param millis: longest time to wait for the client to read what is queued
+	 */
+	public void closeConnection(long millis) {
+		try {
+			outbox.drain(millis);
+		} catch (InterruptedException e) {
+			debug.print(e.getMessage());
+		}
+		outbox.abort();
+	}
+	
+	/**
+	 * Get the number of bytes waiting to be written to the client
+	 */
+	public long getBuffered() {
+		return outbox.getBuffered();
 	}
 	
 	/**
@@ -271,7 +942,7 @@ class ClientHandler extends Thread {
 		try {
 			Packet packet = new Packet(type, message);
 			packet.setSender(sender);			
-			if (!server.hasBlocked(sender, username)) out.writeObject(packet);
+			if (!server.hasBlocked(server.getId(sender), getUserId())) send(packet);
 		} catch (IOException e) {
 			debug.print(e.getMessage());
 		}
@@ -311,6 +982,13 @@ class ClientHandler extends Thread {
 		}		
 	}
 	
+	/**
+	 * Get the address the client is connected from
+	 */
+	public InetAddress getAddress() {
+		return s.getInetAddress();
+	}
+	
 	/**
 	 * Get the welcome socket port number of the client
 	 */
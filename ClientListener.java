@@ -0,0 +1,93 @@
+import java.util.Map;
+
+/**
+ * Callbacks for everything a Client receives, called on the client's decode thread
+ * Every method does nothing by default so bots only implement what they need.
+ * Callbacks should return quickly, anything slow should be handed to another thread.
+ */
+public interface ClientListener {
+
+	/**
+	 * The client has connected (or reconnected) to the server and can log in
+	 */
+	default void connected() {}
+
+	/**
+	 * The login succeeded
+	 */
+	default void loggedIn() {}
+
+	/**
+	 * The login was refused
+	 * @param status: BLOCK, BLOCKED, USERNAME, PASSWORD or ONLINE
+	 */
+	default void loginFailed(String status) {}
+
+	/**
+	 * A direct or broadcast message from another user
+	 * @param sender: user that sent it
+	 * @param message: body
+	 */
+	default void message(String sender, String message) {}
+
+	/**
+	 * Every message that arrived while the user was offline has been passed to message
+	 * @param count: number of offline messages
+	 */
+	default void caughtUp(int count) {}
+
+	/**
+	 * The outcome of a message sent to several users
+	 * @param outcomes: DELIVERED, QUEUED (offline), BLOCKED or INVALID for every recipient, in the order they were given
+	 */
+	default void receipt(Map<String, String> outcomes) {}
+	
+	/**
+	 * A message sent to a channel the user has joined
+	 * @param channel: name of the channel
+	 * @param sender: user that sent it
+	 * @param message: body
+	 */
+	default void channelMessage(String channel, String sender, String message) {}
+
+	/**
+	 * A message over a private connection
+	 * @param sender: user that sent it
+	 * @param message: body
+	 */
+	default void privateMessage(String sender, String message) {}
+
+	/**
+	 * A page of the message history with another user
+	 * @param user: the other user
+	 * @param page: messages, one per line
+	 * @param more: true if there is a next page, asked for with historymore
+	 */
+	default void history(String user, String page, boolean more) {}
+
+	/**
+	 * A page of search results
+	 * @param query: words that were searched for
+	 * @param hits: matching messages, newest first, one per line
+	 * @param more: true if there is a next page
+	 */
+	default void searchResults(String query, String hits, boolean more) {}
+
+	/**
+	 * Any other text for the user, e.g. login/logout alerts, presence digests, command results and errors
+	 * @param text: text to be shown
+	 */
+	default void notice(String text) {}
+
+	/**
+	 * The user is no longer logged in
+	 * @param reason: LOGOUT, EXIT or TIMEOUT
+	 */
+	default void loggedOut(String reason) {}
+
+	/**
+	 * The connection to the server was lost and could not be made again
+	 */
+	default void disconnected() {}
+
+}
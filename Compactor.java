@@ -0,0 +1,114 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class Compactor extends Thread {
+	
+	// Time to live in seconds for each packet type that can be queued, 0 to keep it until delivered
+	// SERVER and PRESENCE notices are only sent to online users, so they never wait in a queue
+	public static final Map<String, Long> DEFAULT_TTLS = new HashMap<>();
+	static {
+		DEFAULT_TTLS.put("MESSAGE", 30L * 24 * 60 * 60);
+		DEFAULT_TTLS.put("CHANNEL", 7L * 24 * 60 * 60);
+	}
+	// Longest time between passes, shorter TTLs are checked more often
+	private static final long MAX_INTERVAL = 60 * 1000;
+	
+	private Server server;
+	private Metrics metrics;
+	private Map<String, Long> ttls;
+	private long shortest;
+	private long interval;
+	private static Debug debug = new Debug();
+	
+	/**
+	 * Thread that drops offline messages that have waited longer than their type's time to live
+	 * Each pass looks at every user without the server lock. A user whose oldest message
+	 * can't have expired yet is skipped with a volatile read, and the others are only locked
+	 * while their own queue is filtered, so senders and sessions never wait for a pass.
+	 * @param server: server whose users are compacted, passes are counted in its metrics
+	 * @param ttls: seconds each packet type is kept for, types that aren't listed are kept until delivered
+	 */
+	public Compactor(Server server, Map<String, Long> ttls) {
+		super("compactor");
+		this.server = server;
+		this.metrics = server.getMetrics();
+		this.ttls = new HashMap<>();
+		this.shortest = Long.MAX_VALUE;
+		for (Map.Entry<String, Long> e : ttls.entrySet()) {
+			if (e.getValue() <= 0) continue;
+			this.ttls.put(e.getKey(), e.getValue() * 1000);
+			shortest = Math.min(shortest, e.getValue() * 1000);
+		}
+		this.interval = Math.max(1000, Math.min(MAX_INTERVAL, shortest / 2));
+		setDaemon(true);
+		debug.set(server.getDebug());
+	}
+	
+	@Override
+	public void run() {
+		if (ttls.isEmpty()) return;
+		while (true) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			compact(System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * Expire the messages of every user that are past their time to live
+	 * @param now: current time in milliseconds
+	 * @return the number of messages expired
+	 */
+	public int compact(long now) {
+		long start = System.nanoTime();
+		int entries = 0;
+		long bytes = 0;
+		for (User u : server.getUsers()) {
+			if (now - u.getOldestQueued() < shortest) continue;
+			for (Packet p : u.expireMessages(now, ttls)) {
+				entries++;
+				bytes += sizeOf(p);
+			}
+		}
+		metrics.increment("compactor.passes");
+		if (entries == 0) return 0;
+		metrics.add("compactor.expired", entries);
+		metrics.add("compactor.reclaimed.bytes", bytes);
+		debug.print("Compaction expired " + entries + " messages, reclaimed " + bytes + " bytes in "
+				+ (System.nanoTime() - start) / 1000 + " us");
+		return entries;
+	}
+	
+	/**
+	 * Parse TTLs given as TYPE=seconds[,TYPE=seconds...] on top of the defaults
+	 * @param spec: e.g. MESSAGE=604800,CHANNEL=0
+	 * @return the TTL of every type in seconds
+	 * @throws IllegalArgumentException for a type that is never queued
+	 */
+	public static Map<String, Long> parse(String spec) {
+		Map<String, Long> ttls = new HashMap<>(DEFAULT_TTLS);
+		for (String entry : spec.split(",")) {
+			int equals = entry.indexOf('=');
+			if (equals == -1) throw new IllegalArgumentException("Expected TYPE=seconds but got " + entry);
+			String type = entry.substring(0, equals).toUpperCase();
+			if (!DEFAULT_TTLS.containsKey(type)) throw new IllegalArgumentException("Only " + DEFAULT_TTLS.keySet() + " are queued, not " + type);
+			ttls.put(type, Long.parseLong(entry.substring(equals + 1)));
+		}
+		return ttls;
+	}
+	
+	/**
+	 * Bytes a queued packet holds in strings, as they would be encoded
+	 */
+	private static long sizeOf(Packet p) {
+		long size = 0;
+		for (String s : new String[] {p.getType(), p.getPayload(), p.getSender(), p.getDest()}) {
+			if (s != null) size += s.getBytes(StandardCharsets.UTF_8).length;
+		}
+		return size;
+	}
+	
+}
@@ -0,0 +1,95 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.*;
+
+public class Compression {
+	
+	// Name sent at login to ask for compression
+	public static final String METHOD = "DEFLATE";
+	
+	// Payloads shorter than this are sent as they are
+	public static final int THRESHOLD = 64;
+	
+	// Text that commonly appears in messages, shared by both ends so short messages still compress
+	private static final byte[] DICTIONARY = (
+			" logged in logged out joined: left: ; Error: Invalid user Your message could not be delivered "
+			+ "to some recipients as the recipient has blocked you is blocked is unblocked "
+			+ "Too many requests, please slow down Server is busy, please try again later "
+			+ "the and you that have for with this what are just not but can will your was "
+			+ "hello thanks please okay yeah sure today tomorrow tonight meeting message ").getBytes(StandardCharsets.UTF_8);
+	
+	// After a poor result, this many payloads are sent uncompressed before trying again
+	private static final int BACKOFF = 16;
+	
+	private Deflater deflater;
+	private Inflater inflater;
+	private byte[] buffer;
+	private int skip;
+	
+	/**
+	 * Per connection compressor using deflate with a preset dictionary
+	 * Every payload is compressed on its own, so packets can be decoded in any order
+	 */
+	public Compression() {
+		this.deflater = new Deflater(Deflater.BEST_SPEED);
+		this.inflater = new Inflater();
+		this.buffer = new byte[4096];
+		this.skip = 0;
+	}
+	
+	/**
+	 * Compress a payload if it is worth it
+	 * Short payloads are skipped, and so are the next few after one that didn't shrink by at least 10%
+	 * @param payload: text to compress
+	 * @return the compressed bytes, null if the payload should be sent as it is
+	 */
+	public synchronized byte[] compress(String payload) {
+		if (payload.length() < THRESHOLD) return null;
+		if (skip > 0) {
+			skip--;
+			return null;
+		}
+		byte[] raw = payload.getBytes(StandardCharsets.UTF_8);
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream result = new ByteArrayOutputStream(raw.length);
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			result.write(buffer, 0, n);
+		}
+		if (result.size() > raw.length * 0.9) {
+			skip = BACKOFF;
+			return null;
+		}
+		return result.toByteArray();
+	}
+	
+	/**
+	 * Decompress a payload made by compress
+	 * Inflating stops once the text is longer than a frame may be, so a small payload
+	 * that would inflate to gigabytes is rejected instead of filling the heap.
+	 * @param bytes: compressed payload
+	 * @return the original text
+	 * @throws ZipException if the payload is corrupt or inflates past Packet.MAX_FRAME
+	 */
+	public synchronized String decompress(byte[] bytes) throws ZipException {
+		try {
+			inflater.reset();
+			inflater.setInput(bytes);
+			ByteArrayOutputStream result = new ByteArrayOutputStream(Math.min(bytes.length * 4, Packet.MAX_FRAME));
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0 && inflater.needsDictionary()) inflater.setDictionary(DICTIONARY);
+				else if (n == 0 && inflater.needsInput()) break;
+				result.write(buffer, 0, n);
+				if (result.size() > Packet.MAX_FRAME) throw new ZipException("Payload inflates past " + Packet.MAX_FRAME + " bytes");
+			}
+			return new String(result.toByteArray(), StandardCharsets.UTF_8);
+		} catch (DataFormatException e) {
+			throw new ZipException("Corrupt payload: " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+import java.io.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Frame {
+	
+	// Encoded packets up to this size are kept in pooled buffers
+	private static final int POOLED_SIZE = 1024;
+	private static final int POOL_LIMIT = 512;
+	private static final Queue<byte[]> pool = new ConcurrentLinkedQueue<>();
+	private static final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+	
+	private Packet packet;
+	private byte[] plain;
+	private int plainLength;
+	private byte[] compressed;
+	private int compressedLength;
+	private AtomicInteger refs;
+	private long enqueued;
+	
+	/**
+	 * A packet encoded once so it can be written to any number of clients
+	 * The frame starts with one reference, which the creator releases once it is done with it.
+	 * @param packet: packet to be encoded
+	 */
+	private Frame(Packet packet) {
+		this.packet = packet;
+		this.refs = new AtomicInteger(1);
+		Encoder e = encoders.get().encode(packet);
+		this.plainLength = e.size();
+		this.plain = e.copy();
+		long[] trace = packet.getTrace();
+		this.enqueued = (trace != null && trace.length > Trace.ENQUEUED) ? trace[Trace.ENQUEUED] : 0;
+	}
+	
+	/**
+	 * Encode a packet into a frame
+	 * @param packet: packet to be encoded
+	 * @return the frame, holding one reference
+	 */
+	public static Frame of(Packet packet) {
+		return new Frame(packet);
+	}
+	
+	/**
+	 * Write the frame to a client, length first
+	 * The compressed version is only made once, by the first compressed connection that needs it
+	 * @param out: stream of the client
+	 * @param compression: compressor of the connection, null if it isn't compressed
+	 */
+	public void writeTo(DataOutputStream out, Compression compression) throws IOException {
+		if (compression == null) {
+			out.writeInt(plainLength);
+			out.write(plain, 0, plainLength);
+			return;
+		}
+		synchronized (this) {
+			if (compressed == null) {
+				Packet copy = packet.compress(compression);
+				if (copy == packet) {
+					compressed = plain;
+					compressedLength = plainLength;
+				} else {
+					Encoder e = encoders.get().encode(copy);
+					compressedLength = e.size();
+					compressed = e.copy();
+				}
+			}
+		}
+		out.writeInt(compressedLength);
+		out.write(compressed, 0, compressedLength);
+	}
+	
+	/**
+	 * Get the size of the uncompressed frame in bytes
+	 */
+	public int length() {
+		return plainLength;
+	}
+	
+	/**
+	 * Get the time a traced packet was queued for sending
+	 * @return the stamp in microseconds, 0 if the packet isn't traced
+	 */
+	public long getEnqueued() {
+		return enqueued;
+	}
+	
+	/**
+	 * Add a reference, for each holder of the frame that will release it later
+	 */
+	public Frame retain() {
+		refs.incrementAndGet();
+		return this;
+	}
+	
+	/**
+	 * Drop a reference, the buffers go back to the pool when there are none left
+	 */
+	public void release() {
+		if (refs.decrementAndGet() != 0) return;
+		recycle(plain);
+		if (compressed != plain) recycle(compressed);
+		plain = null;
+		compressed = null;
+		packet = null;
+	}
+	
+	/**
+	 * Read the next packet from a client or the server
+	 * @param in: stream to read from
+	 * @return the packet
+	 */
+	public static Packet read(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[Packet.checkLength(in.readInt())];
+		in.readFully(bytes);
+		return Packet.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+	
+	/**
+	 * Encode and write a packet that is only sent to one client
+	 * @param out: stream to write to
+	 * @param packet: packet to be sent
+	 */
+	public static void write(DataOutputStream out, Packet packet) throws IOException {
+		Encoder e = encoders.get().encode(packet);
+		out.writeInt(e.size());
+		out.write(e.buffer(), 0, e.size());
+	}
+	
+	private static byte[] take(int size) {
+		if (size > POOLED_SIZE) return new byte[size];
+		byte[] b = pool.poll();
+		return (b == null) ? new byte[POOLED_SIZE] : b;
+	}
+	
+	private static void recycle(byte[] b) {
+		if (b != null && b.length == POOLED_SIZE && pool.size() < POOL_LIMIT) pool.offer(b);
+	}
+	
+	/**
+	 * Reusable per thread buffer that packets are encoded into
+	 */
+	private static class Encoder extends ByteArrayOutputStream {
+		
+		private DataOutputStream data = new DataOutputStream(this);
+		
+		Encoder() {
+			super(POOLED_SIZE);
+		}
+		
+		Encoder encode(Packet packet) {
+			reset();
+			try {
+				packet.writeTo(data);
+			} catch (IOException e) {
+				// Writing to memory doesn't fail
+			}
+			return this;
+		}
+		
+		byte[] buffer() {
+			return buf;
+		}
+		
+		byte[] copy() {
+			byte[] b = take(count);
+			System.arraycopy(buf, 0, b, 0, count);
+			return b;
+		}
+	}
+
+}
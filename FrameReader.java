@@ -0,0 +1,38 @@
+import java.io.*;
+import java.net.ProtocolException;
+
+public class FrameReader {
+	
+	private DataInputStream in;
+	private StringTable names;
+	private byte[] buffer;
+	
+	/**
+	 * Reads frames from a connection into one reused buffer
+	 * Packets are decoded in place, so reading a request doesn't allocate for known
+	 * usernames and packet types and the payload is only turned into a String when asked for.
+	 * @param in: stream of the connection
+	 * @param names: known strings to decode against
+	 */
+	public FrameReader(DataInputStream in, StringTable names) {
+		this.in = in;
+		this.names = names;
+		this.buffer = new byte[1024];
+	}
+	
+	/**
+	 * Read the next frame into a packet
+	 * The packet is only valid until the next call, as it points into the shared buffer
+	 * A length outside 0 to Packet.MAX_FRAME means the stream can't be trusted any more,
+	 * so it is thrown as a ProtocolException for the connection to be closed.
+	 * @param packet: packet to decode into
+	 */
+	public void read(Packet packet) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > Packet.MAX_FRAME) throw new ProtocolException("Bad frame length " + length);
+		if (length > buffer.length) buffer = new byte[Integer.highestOneBit(length) << 1];
+		in.readFully(buffer, 0, length);
+		packet.readFrom(buffer, length, names);
+	}
+
+}
@@ -0,0 +1,51 @@
+import java.util.ArrayList;
+import java.util.List;
+
+public class Heartbeat extends Thread {
+	
+	// A peer that misses this many pings in a row is treated as gone
+	public static final int MISSED_PINGS = 3;
+	
+	private Server server;
+	private long interval;
+	private long idleTimeout;
+	
+	/**
+	 * Thread that checks every session once a second for a dead peer or an idle user
+	 * Handlers only stamp the time they last heard from their client, so liveness costs a
+	 * volatile write per packet. A client that has been silent for an interval is pinged and
+	 * a connection that misses MISSED_PINGS pings is closed, which frees its thread and logs
+	 * its user out within seconds even if TCP never notices. Users that only answer pings
+	 * are still logged out after the idle timeout.
+	 * @param server: server whose sessions are checked
+	 * @param interval: seconds of silence before a client is pinged
+	 * @param idleTimeout: seconds without a request before the user is logged out, 0 for never
+	 */
+	public Heartbeat(Server server, long interval, long idleTimeout) {
+		super("heartbeat");
+		this.server = server;
+		this.interval = interval * 1000;
+		this.idleTimeout = idleTimeout * 1000;
+		setDaemon(true);
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				break;
+			}
+			List<ClientHandler> handlers;
+			synchronized (server.getClients()) {
+				handlers = new ArrayList<>(server.getClients());
+			}
+			long now = System.currentTimeMillis();
+			for (ClientHandler client : handlers) {
+				if (client.isAlive()) client.checkLiveness(now, interval, interval * MISSED_PINGS, idleTimeout);
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,95 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+	
+	// Each power of two is split into SUB_BUCKETS buckets, so a bucket is within 25% of its values
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+	
+	private AtomicLongArray buckets;
+	private LongAdder count;
+	private LongAdder sum;
+	private AtomicLong max;
+	
+	/**
+	 * Distribution of non-negative values, e.g. latencies in microseconds
+	 * Recording is a few atomic adds with no allocation, so it can be done on every packet.
+	 * Percentiles are read from log-linear buckets, which is accurate enough to see which
+	 * stage of a request the time goes in.
+	 */
+	public Histogram() {
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}
+	
+	/**
+	 * Add a value, negative values (from clocks that disagree) are counted as 0
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+		buckets.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		max.accumulateAndGet(value, Math::max);
+	}
+	
+	/**
+	 * Get the number of values recorded
+	 */
+	public long count() {
+		return count.sum();
+	}
+	
+	/**
+	 * Get the highest value recorded
+	 */
+	public long max() {
+		return max.get();
+	}
+	
+	/**
+	 * Get the value that a fraction of the recorded values are at or below
+	 * @param fraction: e.g. 0.99 for the 99th percentile
+	 * @return the lowest value of the bucket the percentile is in, 0 if nothing was recorded
+	 */
+	public long percentile(double fraction) {
+		long total = count.sum();
+		if (total == 0) return 0;
+		long rank = (long)Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) return lowestValue(i);
+		}
+		return max.get();
+	}
+	
+	/**
+	 * Get the count, mean, median, 99th percentile and maximum on one line
+	 */
+	@Override
+	public String toString() {
+		long n = count.sum();
+		long mean = (n == 0) ? 0 : sum.sum() / n;
+		return "count " + n + " mean " + mean + " p50 " + percentile(0.5) + " p99 " + percentile(0.99) + " max " + max.get();
+	}
+	
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+		return (exponent - 1) * SUB_BUCKETS + sub;
+	}
+	
+	private static long lowestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		int exponent = bucket / SUB_BUCKETS + 1;
+		int sub = bucket % SUB_BUCKETS;
+		return (long)(SUB_BUCKETS + sub) << (exponent - 2);
+	}
+	
+}
@@ -0,0 +1,219 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.util.*;
+
+public class HistoryLog {
+	
+	// Every INDEX_INTERVAL-th record has an entry in the sparse index
+	private static final int INDEX_INTERVAL = 64;
+	private static final int INITIAL_SIZE = 64 * 1024;
+	// Offsets are ints, so a log takes no more messages once it would pass this size
+	private static final long MAX_SIZE = Integer.MAX_VALUE;
+	
+	private String name;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private int end;
+	private int count;
+	private long lastTime;
+	private long[] indexTime;
+	private int[] indexOffset;
+	private int indexSize;
+	
+	/**
+	 * Append-only, memory mapped log of the messages between two users
+	 * Records are [length][time][sender][message]; the unused end of the file is zero filled.
+	 * Only the sparse index is kept on the heap.
+	 * @param f: file of the log, created if it doesn't exist
+	 */
+	public HistoryLog(File f) throws IOException {
+		this.name = f.getName();
+		this.file = new RandomAccessFile(f, "rw");
+		this.channel = file.getChannel();
+		this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_SIZE));
+		this.indexTime = new long[16];
+		this.indexOffset = new int[16];
+		
+		// Rebuild the sparse index from the records already in the file
+		int length;
+		while (end + 4 <= map.capacity() && (length = map.getInt(end)) > 0) {
+			lastTime = map.getLong(end + 4);
+			if (count % INDEX_INTERVAL == 0) addIndex(lastTime, end);
+			end += 4 + length;
+			count++;
+		}
+	}
+	
+	/**
+	 * Add a message to the end of the log
+	 * @param time: time the message was sent in milliseconds
+	 * @param sender: user that sent the message
+	 * @param message: body
+	 */
+	public synchronized void append(long time, String sender, String message) throws IOException {
+		byte[] s = sender.getBytes(StandardCharsets.UTF_8);
+		byte[] m = message.getBytes(StandardCharsets.UTF_8);
+		int length = 8 + 4 + s.length + 4 + m.length;
+		
+		// Keep times in order so they can be binary searched
+		time = Math.max(time, lastTime);
+		long needed = (long)end + 4 + length + 4;
+		if (needed > MAX_SIZE) throw new IOException("History log " + name + " is full, the message was not recorded");
+		if (needed > map.capacity()) {
+			long size = map.capacity();
+			while (needed > size) size = Math.min(size * 2, MAX_SIZE);
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		
+		map.position(end);
+		map.putInt(length);
+		map.putLong(time);
+		map.putInt(s.length);
+		map.put(s);
+		map.putInt(m.length);
+		map.put(m);
+		
+		if (count % INDEX_INTERVAL == 0) addIndex(time, end);
+		end += 4 + length;
+		count++;
+		lastTime = time;
+	}
+	
+	/**
+	 * Get the number of messages in the log
+	 */
+	public synchronized int size() {
+		return count;
+	}
+	
+	/**
+	 * Start reading the last n messages
+	 * @param n: number of messages
+	 * @return cursor at the first of them, ending at the messages in the log now
+	 */
+	public synchronized Cursor last(int n) {
+		int from = Math.max(0, count - Math.max(0, n));
+		return new Cursor(from, offsetOf(from), count);
+	}
+	
+	/**
+	 * Start reading the messages sent at or after a given time
+	 * The sparse index is binary searched, then at most INDEX_INTERVAL records are skipped
+	 * @param time: time in milliseconds
+	 * @param max: most messages to read, the newest are kept if there are more
+	 * @return cursor at the first of them, ending at the messages in the log now
+	 */
+	public synchronized Cursor since(long time, int max) {
+		int low = 0;
+		int high = indexSize - 1;
+		int entry = 0;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (indexTime[mid] < time) {
+				entry = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		int i = entry * INDEX_INTERVAL;
+		int offset = (indexSize == 0) ? 0 : indexOffset[entry];
+		while (i < count && map.getLong(offset + 4) < time) {
+			offset += 4 + map.getInt(offset);
+			i++;
+		}
+		if (count - i > max) return last(max);
+		return new Cursor(i, offset, count);
+	}
+	
+	/**
+	 * Read the next page of messages and move the cursor past them
+	 * Only this page is decoded, the rest stay in the file until they are asked for.
+	 * @param cursor: cursor from last or since on this log
+	 * @param page: most messages to read
+	 * @return the messages, oldest first, empty once the cursor is at its end
+	 */
+	public synchronized List<String> next(Cursor cursor, int page) {
+		int to = Math.min(cursor.end, cursor.record + page);
+		List<String> result = new ArrayList<>();
+		for (; cursor.record < to; cursor.record++) {
+			int offset = cursor.offset;
+			long time = map.getLong(offset + 4);
+			int senderLength = map.getInt(offset + 12);
+			String sender = decode(offset + 16, senderLength);
+			int messageLength = map.getInt(offset + 16 + senderLength);
+			String message = decode(offset + 20 + senderLength, messageLength);
+			LocalDateTime when = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+			result.add(when.withNano(0) + " " + sender + ": " + message);
+			cursor.offset += 4 + map.getInt(offset);
+		}
+		return result;
+	}
+	
+	/**
+	 * Close the log file
+	 */
+	public synchronized void close() throws IOException {
+		map.force();
+		channel.close();
+		file.close();
+	}
+	
+	/**
+	 * Find where a record starts from the nearest index entry before it
+	 */
+	private int offsetOf(int record) {
+		if (record >= count) return end;
+		int entry = record / INDEX_INTERVAL;
+		int offset = indexOffset[entry];
+		for (int i = entry * INDEX_INTERVAL; i < record; i++) offset += 4 + map.getInt(offset);
+		return offset;
+	}
+	
+	private String decode(int offset, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) bytes[i] = map.get(offset + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private void addIndex(long time, int offset) {
+		if (indexSize == indexTime.length) {
+			indexTime = Arrays.copyOf(indexTime, indexSize * 2);
+			indexOffset = Arrays.copyOf(indexOffset, indexSize * 2);
+		}
+		indexTime[indexSize] = time;
+		indexOffset[indexSize] = offset;
+		indexSize++;
+	}
+	
+	/**
+	 * Position of the next message to read from a log, and the message to stop before
+	 * The end is fixed when the cursor is made, so messages sent while the pages are read
+	 * don't move them.
+	 */
+	public static class Cursor {
+		
+		private int record;
+		private int offset;
+		private int end;
+		
+		private Cursor(int record, int offset, int end) {
+			this.record = record;
+			this.offset = offset;
+			this.end = end;
+		}
+		
+		/**
+		 * Check if there are messages left to read
+		 */
+		public boolean hasMore() {
+			return record < end;
+		}
+	
+	}
+
+}
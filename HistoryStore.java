@@ -0,0 +1,60 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class HistoryStore {
+	
+	private File dir;
+	private Map<String, HistoryLog> logs;
+	
+	/**
+	 * Server side history of the messages between each pair of users
+	 * @param dir: directory to keep one log file per conversation in
+	 */
+	public HistoryStore(File dir) {
+		this.dir = dir;
+		this.logs = new ConcurrentHashMap<>();
+		dir.mkdirs();
+	}
+	
+	/**
+	 * Record a message between two users
+	 * @param sender: user that sent the message
+	 * @param dest: user the message was sent to
+	 * @param message: body
+	 */
+	public void record(String sender, String dest, String message) throws IOException {
+		getLog(sender, dest).append(System.currentTimeMillis(), sender, message);
+	}
+	
+	/**
+	 * Get the log of the conversation between two users, opening it if needed
+	 * The key starts with the length of the first name, so names that contain the separator
+	 * can't make two pairs share a log (a_b with c and a with b_c).
+	 */
+	public HistoryLog getLog(String a, String b) throws IOException {
+		String first = (a.compareTo(b) < 0) ? a : b;
+		String second = (first == a) ? b : a;
+		String key = first.length() + "_" + first + "_" + second;
+		HistoryLog log = logs.get(key);
+		if (log == null) {
+			synchronized (this) {
+				log = logs.get(key);
+				if (log == null) {
+					log = new HistoryLog(new File(dir, key + ".log"));
+					logs.put(key, log);
+				}
+			}
+		}
+		return log;
+	}
+	
+	/**
+	 * Write every open log to disk and close it
+	 */
+	public synchronized void close() throws IOException {
+		for (HistoryLog log : logs.values()) log.close();
+		logs.clear();
+	}
+
+}
@@ -0,0 +1,191 @@
+import java.util.Arrays;
+
+public class IdSet {
+	
+	// Sets with fewer IDs than this always stay as sorted arrays
+	private static final int MIN_BITMAP = 64;
+	private static final Container EMPTY = new Container(new int[0], null, 0);
+	
+	private volatile Container set;
+	
+	/**
+	 * Set of user IDs
+	 * Small sets are a sorted array, big sets (e.g. moderation accounts) switch to a bitmap
+	 * once the array would take more memory than a bitmap, like a single roaring container.
+	 * Changes copy the container, so reads never need a lock and see a consistent set.
+	 */
+	public IdSet() {
+		this.set = EMPTY;
+	}
+	
+	/**
+	 * Check if an ID is in the set, by bit lookup or binary search
+	 */
+	public boolean contains(int id) {
+		Container c = set;
+		if (c.bits != null) return id >= 0 && (id >> 6) < c.bits.length && (c.bits[id >> 6] & (1L << id)) != 0;
+		return Arrays.binarySearch(c.ids, id) >= 0;
+	}
+	
+	/**
+	 * Add an ID to the set
+	 * @return true if it wasn't in the set already
+	 */
+	public synchronized boolean add(int id) {
+		if (contains(id)) return false;
+		Container c = set;
+		if (c.bits != null) {
+			long[] bits = Arrays.copyOf(c.bits, Math.max(c.bits.length, (id >> 6) + 1));
+			bits[id >> 6] |= 1L << id;
+			set = new Container(null, bits, c.size + 1);
+			return true;
+		}
+		int i = -Arrays.binarySearch(c.ids, id) - 1;
+		int[] updated = new int[c.ids.length + 1];
+		System.arraycopy(c.ids, 0, updated, 0, i);
+		updated[i] = id;
+		System.arraycopy(c.ids, i, updated, i + 1, c.ids.length - i);
+		set = pack(updated);
+		return true;
+	}
+	
+	/**
+	 * Remove an ID from the set
+	 * @return true if it was in the set
+	 */
+	public synchronized boolean remove(int id) {
+		if (!contains(id)) return false;
+		Container c = set;
+		if (c.bits != null) {
+			long[] bits = c.bits.clone();
+			bits[id >> 6] &= ~(1L << id);
+			// Go back to an array well below the switch point so the set doesn't flip back and forth
+			set = (c.size - 1 < arrayLimit(bits.length) / 2) ? pack(toArray(bits, c.size - 1)) : new Container(null, bits, c.size - 1);
+			return true;
+		}
+		int i = Arrays.binarySearch(c.ids, id);
+		int[] updated = new int[c.ids.length - 1];
+		System.arraycopy(c.ids, 0, updated, 0, i);
+		System.arraycopy(c.ids, i + 1, updated, i, c.ids.length - i - 1);
+		set = pack(updated);
+		return true;
+	}
+	
+	/**
+	 * Remove every ID from the set
+	 */
+	public synchronized void clear() {
+		set = EMPTY;
+	}
+	
+	/**
+	 * Check if the set is empty
+	 */
+	public boolean isEmpty() {
+		return set.size == 0;
+	}
+	
+	/**
+	 * Get the number of IDs in the set
+	 */
+	public int size() {
+		return set.size;
+	}
+	
+	/**
+	 * Get a copy of the IDs in the set, in order
+	 */
+	public int[] toArray() {
+		Container c = set;
+		if (c.bits != null) return toArray(c.bits, c.size);
+		return c.ids.clone();
+	}
+	
+	/**
+	 * Clear the bit of every ID in the set from a mask
+	 * Bitmaps are cleared a word at a time, so a long blocklist costs one pass over the mask
+	 * @param mask: bitmap indexed by user ID
+	 */
+	public void removeFrom(long[] mask) {
+		Container c = set;
+		if (c.bits != null) {
+			int n = Math.min(mask.length, c.bits.length);
+			for (int i = 0; i < n; i++) mask[i] &= ~c.bits[i];
+		} else {
+			for (int id : c.ids) {
+				if ((id >> 6) < mask.length) mask[id >> 6] &= ~(1L << id);
+			}
+		}
+	}
+	
+	/**
+	 * Check if any ID in the set has its bit set in a mask
+	 * @param mask: bitmap indexed by user ID
+	 */
+	public boolean intersects(long[] mask) {
+		Container c = set;
+		if (c.bits != null) {
+			int n = Math.min(mask.length, c.bits.length);
+			for (int i = 0; i < n; i++) {
+				if ((mask[i] & c.bits[i]) != 0) return true;
+			}
+		} else {
+			for (int id : c.ids) {
+				if ((id >> 6) < mask.length && (mask[id >> 6] & (1L << id)) != 0) return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Pick the smaller of a sorted array and a bitmap for the given IDs
+	 */
+	private static Container pack(int[] ids) {
+		if (ids.length == 0) return EMPTY;
+		int words = (ids[ids.length - 1] >> 6) + 1;
+		if (ids.length < arrayLimit(words)) return new Container(ids, null, ids.length);
+		long[] bits = new long[words];
+		for (int id : ids) bits[id >> 6] |= 1L << id;
+		return new Container(null, bits, ids.length);
+	}
+	
+	/**
+	 * Number of IDs at which a sorted array takes as much memory as a bitmap of this many words
+	 */
+	private static int arrayLimit(int words) {
+		return Math.max(MIN_BITMAP, words * 2);
+	}
+	
+	/**
+	 * List the set bits of a bitmap in order
+	 */
+	private static int[] toArray(long[] bits, int size) {
+		int[] ids = new int[size];
+		int n = 0;
+		for (int i = 0; i < bits.length; i++) {
+			long word = bits[i];
+			while (word != 0) {
+				ids[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
+		}
+		return ids;
+	}
+	
+	/**
+	 * Immutable contents of the set, exactly one of ids and bits is used
+	 */
+	private static final class Container {
+		
+		final int[] ids;
+		final long[] bits;
+		final int size;
+		
+		Container(int[] ids, long[] bits, int size) {
+			this.ids = ids;
+			this.bits = bits;
+			this.size = size;
+		}
+	}
+	
+}
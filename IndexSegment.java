@@ -0,0 +1,176 @@
+import java.util.*;
+
+public class IndexSegment {
+	
+	private Map<Long, byte[]> postings;
+	private int docs;
+	
+	/**
+	 * Immutable part of the search index covering a range of messages
+	 * Every user has their own postings list for each word, keyed by user ID and word ID, so a
+	 * search only ever sees messages the user received. The message IDs in a list are in
+	 * increasing order and stored as variable length deltas, usually one byte each.
+	 * @param postings: encoded postings lists
+	 * @param docs: number of messages the segment covers
+	 */
+	private IndexSegment(Map<Long, byte[]> postings, int docs) {
+		this.postings = postings;
+		this.docs = docs;
+	}
+	
+	/**
+	 * Get the number of messages the segment covers
+	 */
+	public int size() {
+		return docs;
+	}
+	
+	/**
+	 * Get the messages a user received containing a word
+	 * @return the message IDs in increasing order, null if there are none
+	 */
+	public int[] get(int user, int term) {
+		byte[] list = postings.get(key(user, term));
+		return (list == null) ? null : decode(list);
+	}
+	
+	/**
+	 * Combine segments of consecutive message ranges into one
+	 * @param segments: segments, oldest first
+	 * @return the merged segment
+	 */
+	public static IndexSegment merge(List<IndexSegment> segments) {
+		Map<Long, Builder.Postings> merged = new HashMap<>();
+		int docs = 0;
+		for (IndexSegment segment : segments) {
+			for (Map.Entry<Long, byte[]> e : segment.postings.entrySet()) {
+				Builder.Postings list = merged.computeIfAbsent(e.getKey(), k -> new Builder.Postings());
+				for (int doc : decode(e.getValue())) list.add(doc);
+			}
+			docs += segment.docs;
+		}
+		Map<Long, byte[]> postings = new HashMap<>(merged.size() * 2);
+		for (Map.Entry<Long, Builder.Postings> e : merged.entrySet()) postings.put(e.getKey(), e.getValue().toArray());
+		return new IndexSegment(postings, docs);
+	}
+	
+	private static long key(int user, int term) {
+		return ((long)user << 32) | (term & 0xffffffffL);
+	}
+	
+	private static int[] decode(byte[] list) {
+		// The count comes first so the array is allocated once
+		int[] pos = {0};
+		int[] docs = new int[readVarint(list, pos)];
+		int doc = 0;
+		for (int i = 0; i < docs.length; i++) {
+			doc += readVarint(list, pos);
+			docs[i] = doc;
+		}
+		return docs;
+	}
+	
+	private static int readVarint(byte[] b, int[] pos) {
+		int value = 0;
+		int shift = 0;
+		byte next;
+		do {
+			next = b[pos[0]++];
+			value |= (next & 0x7f) << shift;
+			shift += 7;
+		} while (next < 0);
+		return value;
+	}
+	
+	/**
+	 * The segment messages are being added to, frozen into an IndexSegment once it is full
+	 * Only the indexing thread adds to it, searches read it under the same lock.
+	 */
+	public static class Builder {
+		
+		private Map<Long, Postings> lists = new HashMap<>();
+		private int docs;
+		
+		/**
+		 * Add a message to a user's postings lists
+		 * @param user: ID of the user that received the message
+		 * @param terms: IDs of the distinct words in the message
+		 * @param doc: ID of the message, higher than any added before
+		 */
+		public void add(int user, int[] terms, int doc) {
+			for (int term : terms) lists.computeIfAbsent(key(user, term), k -> new Postings()).add(doc);
+		}
+		
+		/**
+		 * Count a message as part of this segment, once for all its recipients
+		 */
+		public void count() {
+			docs++;
+		}
+		
+		/**
+		 * Get the number of messages added so far
+		 */
+		public int size() {
+			return docs;
+		}
+		
+		/**
+		 * Get the messages a user received containing a word
+		 * @return the message IDs in increasing order, null if there are none
+		 */
+		public int[] get(int user, int term) {
+			Postings list = lists.get(key(user, term));
+			return (list == null) ? null : decode(list.toArray());
+		}
+		
+		/**
+		 * Make the immutable segment with the same contents
+		 */
+		public IndexSegment build() {
+			Map<Long, byte[]> postings = new HashMap<>(lists.size() * 2);
+			for (Map.Entry<Long, Postings> e : lists.entrySet()) postings.put(e.getKey(), e.getValue().toArray());
+			return new IndexSegment(postings, docs);
+		}
+		
+		/**
+		 * Growing delta encoded list of message IDs
+		 */
+		static class Postings {
+			
+			private byte[] bytes = new byte[8];
+			private int length;
+			private int count;
+			private int last;
+			
+			void add(int doc) {
+				if (length + 5 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+				int delta = doc - last;
+				while ((delta & ~0x7f) != 0) {
+					bytes[length++] = (byte)((delta & 0x7f) | 0x80);
+					delta >>>= 7;
+				}
+				bytes[length++] = (byte)delta;
+				last = doc;
+				count++;
+			}
+			
+			// Encoded with the count in front, the form stored in a segment
+			byte[] toArray() {
+				byte[] header = new byte[5];
+				int n = 0;
+				int c = count;
+				while ((c & ~0x7f) != 0) {
+					header[n++] = (byte)((c & 0x7f) | 0x80);
+					c >>>= 7;
+				}
+				header[n++] = (byte)c;
+				byte[] result = new byte[n + length];
+				System.arraycopy(header, 0, result, 0, n);
+				System.arraycopy(bytes, 0, result, n, length);
+				return result;
+			}
+		}
+	}
+	
+}
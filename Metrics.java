@@ -0,0 +1,122 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class Metrics extends Thread {
+	
+	private Map<String, LongAdder> counters;
+	private Map<String, LongSupplier> gauges;
+	private Map<String, Histogram> histograms;
+	private long interval;
+	
+	/**
+	 * Counters for the server that can be printed periodically
+	 */
+	public Metrics() {
+		this.counters = new ConcurrentSkipListMap<>();
+		this.gauges = new ConcurrentSkipListMap<>();
+		this.histograms = new ConcurrentSkipListMap<>();
+		this.interval = 0;
+		setDaemon(true);
+	}
+	
+	@Override
+	public void run() {
+		while (interval > 0) {
+			try {
+				Thread.sleep(interval * 1000);
+				System.out.println(report());
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Print a report every interval
+	 * @param interval: seconds between reports
+	 */
+	public void startReporting(long interval) {
+		if (interval <= 0) return;
+		this.interval = interval;
+		start();
+	}
+	
+	/**
+	 * Add one to a counter
+	 * @param name: name of the counter
+	 */
+	public void increment(String name) {
+		add(name, 1);
+	}
+	
+	/**
+	 * Add to a counter
+	 * @param name: name of the counter
+	 * @param amount: amount to add
+	 */
+	public void add(String name, long amount) {
+		counters.computeIfAbsent(name, k -> new LongAdder()).add(amount);
+	}
+	
+	/**
+	 * Get the value of a counter
+	 */
+	public long get(String name) {
+		LongAdder counter = counters.get(name);
+		return (counter == null) ? 0 : counter.sum();
+	}
+	
+	/**
+	 * Add a value to a histogram, e.g. a latency in microseconds
+	 * @param name: name of the histogram
+	 * @param value: value to add
+	 */
+	public void record(String name, long value) {
+		histograms.computeIfAbsent(name, k -> new Histogram()).record(value);
+	}
+	
+	/**
+	 * Get a histogram
+	 * @return the histogram, null if nothing has been recorded in it
+	 */
+	public Histogram getHistogram(String name) {
+		return histograms.get(name);
+	}
+	
+	/**
+	 * Report a value that is read when the report is made, e.g. the bytes buffered for a session
+	 * @param name: name of the gauge
+	 * @param gauge: reads the current value
+	 */
+	public void gauge(String name, LongSupplier gauge) {
+		gauges.put(name, gauge);
+	}
+	
+	/**
+	 * Stop reporting a gauge
+	 * @param name: name of the gauge
+	 */
+	public void removeGauge(String name) {
+		gauges.remove(name);
+	}
+	
+	/**
+	 * Get every counter and gauge as "name value" lines, then every histogram
+	 */
+	public String report() {
+		StringBuilder result = new StringBuilder("Metrics:");
+		for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+			result.append("\n  ").append(e.getKey()).append(" ").append(e.getValue().sum());
+		}
+		for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+			result.append("\n  ").append(e.getKey()).append(" ").append(e.getValue().getAsLong());
+		}
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			result.append("\n  ").append(e.getKey()).append(" ").append(e.getValue());
+		}
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,85 @@
+import java.util.*;
+
+public class OfflineBatch {
+	
+	// A batch is cut once it has this many characters of messages or this many messages
+	public static final int MAX_CHARS = 16 * 1024;
+	public static final int MAX_MESSAGES = 512;
+	
+	/**
+	 * Pack the messages a user got while offline into OFFLINE packets of many messages each
+	 * Messages are grouped by sender in the order each sender first appears, so a batch
+	 * names its sender once and every sender's messages stay in order. The payload is each
+	 * message as "<length>:<text>", so messages can hold any character. Every batch but the
+	 * last is marked with more, so the client knows when it has caught up. The server keeps
+	 * the time each message was queued with the batch, so requeuing it doesn't reset their TTL.
+	 * @param messages: queued MESSAGE packets, oldest first
+	 * @return the batches, in the order to send them
+	 */
+	public static List<Packet> pack(List<Packet> messages) {
+		Map<String, List<Packet>> bySender = new LinkedHashMap<>();
+		for (Packet p : messages) bySender.computeIfAbsent(p.getSender(), k -> new ArrayList<>()).add(p);
+		
+		List<Packet> batches = new ArrayList<>();
+		for (Map.Entry<String, List<Packet>> e : bySender.entrySet()) {
+			StringBuilder payload = new StringBuilder();
+			long[] queued = new long[Math.min(MAX_MESSAGES, e.getValue().size())];
+			int count = 0;
+			for (Packet p : e.getValue()) {
+				String text = (p.getPayload() == null) ? "" : p.getPayload();
+				if (count > 0 && (count == MAX_MESSAGES || payload.length() + text.length() > MAX_CHARS)) {
+					batches.add(batch(e.getKey(), payload, queued, count));
+					payload.setLength(0);
+					count = 0;
+				}
+				payload.append(text.length()).append(':').append(text);
+				queued[count++] = p.getQueued();
+			}
+			batches.add(batch(e.getKey(), payload, queued, count));
+		}
+		for (int i = 0; i < batches.size() - 1; i++) batches.get(i).setMore(true);
+		return batches;
+	}
+	
+	/**
+	 * Get the messages in a batch payload
+	 * @param payload: payload of an OFFLINE packet
+	 * @return the messages, oldest first
+	 */
+	public static List<String> unpack(String payload) {
+		List<String> messages = new ArrayList<>();
+		int pos = 0;
+		while (pos < payload.length()) {
+			int colon = payload.indexOf(':', pos);
+			int length = Integer.parseInt(payload.substring(pos, colon));
+			messages.add(payload.substring(colon + 1, colon + 1 + length));
+			pos = colon + 1 + length;
+		}
+		return messages;
+	}
+	
+	/**
+	 * Turn a batch back into MESSAGE packets, for putting it back in the offline queue
+	 * @param batch: OFFLINE packet
+	 * @return one packet per message, oldest first, with the time it was first queued
+	 */
+	public static List<Packet> split(Packet batch) {
+		List<Packet> packets = new ArrayList<>();
+		long[] queued = batch.getQueuedTimes();
+		for (String text : unpack(batch.getPayload())) {
+			Packet p = new Packet("MESSAGE", text);
+			p.setSender(batch.getSender());
+			if (queued != null && packets.size() < queued.length) p.setQueued(queued[packets.size()]);
+			packets.add(p);
+		}
+		return packets;
+	}
+	
+	private static Packet batch(String sender, StringBuilder payload, long[] queued, int count) {
+		Packet p = new Packet("OFFLINE", payload.toString());
+		p.setSender(sender);
+		p.setQueuedTimes(Arrays.copyOf(queued, count));
+		return p;
+	}
+	
+}
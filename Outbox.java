@@ -0,0 +1,255 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class Outbox extends Thread {
+	
+	// Above the high watermark a session is lagging and only gets essential packets,
+	// it goes back to normal once it drains below the low watermark
+	public static final long HIGH_WATERMARK = 256 * 1024;
+	public static final long LOW_WATERMARK = 64 * 1024;
+	// Sessions this far behind are disconnected
+	public static final long DISCONNECT_LIMIT = 4 * 1024 * 1024;
+	
+	// Priority classes, highest first: replies to the user's own requests, direct messages,
+	// broadcasts/channel posts/presence, then history pages and search results
+	public static final int CONTROL = 0;
+	public static final int DIRECT = 1;
+	public static final int BULK = 2;
+	public static final int REPLAY = 3;
+	// Most frames taken from each class per round, so lower classes still make progress
+	private static final int[] WEIGHTS = {16, 8, 4, 2};
+	
+	private Socket s;
+	private DataOutputStream out;
+	private Metrics metrics;
+	private Queue<Frame>[] queues;
+	private AtomicLong buffered;
+	// Queue times of the traced frames written since the last flush
+	private long[] traced;
+	private int tracedCount;
+	private volatile boolean sleeping;
+	private volatile Compression compression;
+	private volatile boolean lagging;
+	private volatile boolean closed;
+	private static Debug debug = new Debug();
+	
+	/**
+	 * Outgoing buffer of one session, written to the socket by its own thread
+	 * Adding a frame never blocks, so a client that stops reading can't hold up
+	 * the thread sending to it (usually a broadcast holding the server lock).
+	 * Frames wait in one queue per priority class and are written in weighted rounds, so a
+	 * reply to the user is not stuck behind a burst of broadcasts or history pages.
+	 * @param server: server the session belongs to, lagging and dropped sessions are counted in its metrics
+	 * @param s: socket of the client
+	 * @param out: stream of the client
+	 */
+	public Outbox(Server server, Socket s, DataOutputStream out) {
+		this.s = s;
+		this.out = out;
+		this.metrics = server.getMetrics();
+		this.queues = newQueues();
+		this.buffered = new AtomicLong();
+		this.traced = new long[WEIGHTS[CONTROL] + WEIGHTS[DIRECT]];
+		this.compression = null;
+		this.lagging = false;
+		this.closed = false;
+		setDaemon(true);
+		debug.set(server.getDebug());
+	}
+	
+	// One queue per priority class, made as a wildcard array since generic arrays cannot be created
+	@SuppressWarnings("unchecked")
+	private static Queue<Frame>[] newQueues() {
+		Queue<Frame>[] queues = (Queue<Frame>[])new Queue<?>[WEIGHTS.length];
+		for (int i = 0; i < queues.length; i++) queues[i] = new ConcurrentLinkedQueue<>();
+		return queues;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			long unflushed = 0;
+			while (!closed) {
+				// One round takes up to the weight of each class, highest class first
+				long written = 0;
+				boolean urgent = false;
+				for (int c = 0; c < queues.length; c++) {
+					Frame frame;
+					for (int n = 0; n < WEIGHTS[c] && (frame = queues[c].poll()) != null; n++) {
+						written += write(frame);
+						if (c <= DIRECT) urgent = true;
+					}
+				}
+				unflushed += written;
+				
+				// Replies and messages are flushed straight away, fan-out traffic once nothing is left
+				if (unflushed > 0 && (urgent || written == 0)) {
+					out.flush();
+					recordTraced();
+					if (buffered.addAndGet(-unflushed) < LOW_WATERMARK && lagging) {
+						lagging = false;
+						debug.print("Session " + s + " has caught up");
+					}
+					unflushed = 0;
+					synchronized (this) {
+						notifyAll();
+					}
+				}
+				if (written == 0) {
+					// Producers check the flag after adding a frame
+					sleeping = true;
+					if (isEmpty() && !closed) LockSupport.park(this);
+					sleeping = false;
+				}
+			}
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		} finally {
+			closed = true;
+			for (Queue<Frame> queue : queues) {
+				Frame frame;
+				while ((frame = queue.poll()) != null) frame.release();
+			}
+			buffered.set(0);
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+	
+	private boolean isEmpty() {
+		for (Queue<Frame> queue : queues) {
+			if (!queue.isEmpty()) return false;
+		}
+		return true;
+	}
+	
+	private int write(Frame frame) throws IOException {
+		try {
+			frame.writeTo(out, compression);
+			if (frame.getEnqueued() != 0) {
+				if (tracedCount == traced.length) recordTraced();
+				traced[tracedCount++] = frame.getEnqueued();
+			}
+			return frame.length();
+		} finally {
+			frame.release();
+		}
+	}
+	
+	/**
+	 * Record how long the traced frames that were just written waited and took to write
+	 */
+	private void recordTraced() {
+		if (tracedCount == 0) return;
+		long now = Trace.now();
+		for (int i = 0; i < tracedCount; i++) metrics.record("trace.outbox.us", now - traced[i]);
+		tracedCount = 0;
+	}
+	
+	/**
+	 * Queue a frame to be written
+	 * @param frame: frame to be sent, the outbox takes its own reference
+	 * @param priority: CONTROL, DIRECT, BULK or REPLAY
+	 * @param droppable: true for fan-out traffic that a lagging session can go without
+	 * @return true if the frame was queued, false if it was dropped
+	 * @throws IOException if the session has been closed
+	 */
+	public boolean offer(Frame frame, int priority, boolean droppable) throws IOException {
+		if (closed) throw new IOException("Connection closed");
+		if (droppable && lagging) {
+			metrics.increment("outbox.dropped");
+			return false;
+		}
+		long total = buffered.addAndGet(frame.length());
+		queues[priority].add(frame.retain());
+		if (sleeping) LockSupport.unpark(this);
+		if (total > DISCONNECT_LIMIT) {
+			metrics.increment("outbox.disconnected");
+			debug.print("Session " + s + " is too slow, disconnecting");
+			abort();
+		} else if (total > HIGH_WATERMARK && !lagging) {
+			lagging = true;
+			metrics.increment("outbox.lagging");
+			debug.print("Session " + s + " is lagging, only sending essential packets");
+		}
+		return true;
+	}
+	
+	/**
+	 * Get the priority class a packet is sent with
+	 * @param type: type of the packet
+	 */
+	public static int priorityOf(String type) {
+		switch (type) {
+		case "MESSAGE":
+		case "OFFLINE":
+			return DIRECT;
+		case "CHANNEL":
+		case "PRESENCE":
+			return BULK;
+		case "HISTORY":
+		case "SEARCH":
+			return REPLAY;
+		default:
+			return CONTROL;
+		}
+	}
+	
+	/**
+	 * Compress payloads written from now on
+	 * @param compression: compressor of the connection, null to stop compressing
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+	
+	/**
+	 * Get the number of bytes waiting to be written
+	 */
+	public long getBuffered() {
+		return buffered.get();
+	}
+	
+	/**
+	 * Check if the session is above its high watermark
+	 */
+	public boolean isLagging() {
+		return lagging;
+	}
+	
+	/**
+	 * Wait for everything queued so far to be written and flushed
+	 * @param millis: longest time to wait
+	 * @return true if the outbox is empty
+	 */
+	public synchronized boolean drain(long millis) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		while (buffered.get() > 0 && !closed) {
+			long left = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+			if (left <= 0) return false;
+			wait(left);
+		}
+		return buffered.get() == 0;
+	}
+	
+	/**
+	 * Close the connection straight away, dropping anything not yet written
+	 * The handler reading from the socket sees it as a force close.
+	 */
+	public void abort() {
+		closed = true;
+		LockSupport.unpark(this);
+		try {
+			s.close();
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+}
@@ -1,37 +1,45 @@
 import java.io.*;
 import java.net.*;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class P2PHub extends Thread {
 	
+	// Longest wait for a direct connection before falling back to the relay
+	private static final int CONNECT_TIMEOUT = 2000;
+	
 	private ServerSocket welcomeSocket;
+	private InetAddress localAddress;
 	private List<P2PThread> connections;
+	private boolean compress;
+	private Tls tls;
+	private ClientListener listener;
 	
 	/**
 	 * Thread for accepting and messaging peer to peer sockets
-	 * @param welcomeSocket: welcome socket to accept sockets
+	 * @param welcomeSocket: welcome socket to accept sockets, null to only use the relay
+	 * @param localAddress: address to connect from, null for any
+	 * @param compress: true to compress messages if the other user supports it
+	 * @param tls: settings to encrypt private connections with, null for plain connections
+	 * @param listener: gets the private messages
 	 */
-	P2PHub (ServerSocket welcomeSocket) {
+	P2PHub (ServerSocket welcomeSocket, InetAddress localAddress, boolean compress, Tls tls, ClientListener listener) {
 		this.welcomeSocket = welcomeSocket;
-		this.connections = new ArrayList<>();
+		this.localAddress = localAddress;
+		this.connections = new CopyOnWriteArrayList<>();
+		this.compress = compress;
+		this.tls = tls;
+		this.listener = listener;
+		setDaemon(true);
 	}
 	
 	@Override
 	public void run() {
 		
-		Socket s = null;
+		if (welcomeSocket == null) return;
 		while (true) {
 			try {
-				// When accepting a socket, receive 1 message containing the other
-				// user's name for reference
-				s = welcomeSocket.accept();
-				DataInputStream in = new DataInputStream(s.getInputStream());
-				DataOutputStream out = new DataOutputStream(s.getOutputStream());
-				String sender = in.readUTF();
-				P2PThread t = new P2PThread(s, sender, in, out);
-				connections.add(t);
-				t.start();
+				accept(welcomeSocket.accept());
 			} catch (Exception e) {
 				if (welcomeSocket.isClosed()) break;
 			}
@@ -39,28 +47,119 @@ public class P2PHub extends Thread {
 		
 	}
 	
+	/**
+	 * Take a connection made by another user
+	 * The first byte says whether the other user wants TLS, which needs a key on this side,
+	 * then receive 1 message containing the other user's name for reference, then whether they want compression
+	 * With TLS turned on a plain text connection is refused, like connect does for outgoing ones.
+	 * @return the other user
+	 */
+	private String accept(Socket s) throws IOException {
+		InputStream rawIn = s.getInputStream();
+		OutputStream rawOut = s.getOutputStream();
+		boolean secure = rawIn.read() == 1 && tls != null && tls.hasKey();
+		rawOut.write(secure ? 1 : 0);
+		if (tls != null && !secure) {
+			rawOut.flush();
+			s.close();
+			throw new IOException("Refused a private connection without TLS");
+		}
+		if (secure) {
+			TlsConnection connection = tls.accept(s);
+			rawIn = connection.getInputStream();
+			rawOut = connection.getOutputStream();
+		}
+		DataInputStream in = new DataInputStream(rawIn);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(rawOut));
+		String sender = in.readUTF();
+		boolean agreed = in.readBoolean() && compress;
+		out.writeBoolean(agreed);
+		out.flush();
+		P2PThread t = new P2PThread(s, sender, in, out, agreed, listener);
+		connections.add(t);
+		t.start();
+		return sender;
+	}
+	
+	/**
+	 * Introduce this user on a new connection to another user
+	 */
+	private void connect(Socket s, String source, String dest) throws IOException {
+		InputStream rawIn = s.getInputStream();
+		OutputStream rawOut = s.getOutputStream();
+		// With TLS turned on a private connection is never made in plain text
+		rawOut.write(tls != null ? 1 : 0);
+		boolean secure = rawIn.read() == 1;
+		if (tls != null && !secure) throw new IOException(dest + " can't take encrypted private connections");
+		if (secure) {
+			TlsConnection connection = tls.connect(s, s.getInetAddress().getHostAddress(), s.getPort());
+			rawIn = connection.getInputStream();
+			rawOut = connection.getOutputStream();
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(rawOut));
+		DataInputStream in = new DataInputStream(rawIn);
+		out.writeUTF(source);
+		// Offer compression, the other user answers whether it will be used
+		out.writeBoolean(compress);
+		out.flush();
+		boolean agreed = in.readBoolean();
+		P2PThread t = new P2PThread(s, dest, in, out, agreed, listener);
+		connections.add(t);
+		t.start();
+	}
+	
 	/**
 	 * Start a peer to peer connection with another user
 	 * @param source: this client user
 	 * @param dest: user to connect to
+	 * @param host: other user's address
 	 * @param port: other user's port to connect to
 	 * @return true if the connection was successfully made
 	 */
-	public boolean makeConnection (String source, String dest, int port) {	
+	public boolean makeConnection (String source, String dest, InetAddress host, int port) {	
+		Socket s = new Socket();
 		try {
-			Socket s = new Socket(InetAddress.getLocalHost(), port);
-			DataOutputStream out = new DataOutputStream(s.getOutputStream());
-			DataInputStream in = new DataInputStream(s.getInputStream());
-			out.writeUTF(source);
-			P2PThread t = new P2PThread(s, dest, in, out);
-			connections.add(t);
-			t.start();
+			if (localAddress != null) s.bind(new InetSocketAddress(localAddress, 0));
+			s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			connect(s, source, dest);
 			return true;
 		} catch (Exception e) {
+			try {
+				s.close();
+			} catch (IOException closing) {
+				// Never connected
+			}
 			return false;
 		}
 	}
 	
+	/**
+	 * Start a private connection through the server's relay
+	 * Runs on its own thread as the other user may not have joined the relay yet.
+	 * @param server: address of the server
+	 * @param port: port of the relay
+	 * @param token: token the server gave both users for this relay
+	 * @param source: this client user
+	 * @param dest: other user
+	 * @param initiator: true if this user asked for the connection, the other side waits to be introduced
+	 */
+	public void makeRelayConnection (InetAddress server, int port, long token, String source, String dest, boolean initiator) {
+		Thread t = new Thread(() -> {
+			try {
+				Socket s = new Socket(server, port, localAddress, 0);
+				s.setTcpNoDelay(true);
+				new DataOutputStream(s.getOutputStream()).writeLong(token);
+				if (initiator) connect(s, source, dest);
+				else accept(s);
+				listener.notice("Start private messaging with " + dest + " (relayed by the server)");
+			} catch (IOException e) {
+				listener.notice("Error: Failed to make private connection with " + dest);
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+	
 	/**
 	 * Check if this client has a private connection to another user
 	 * @param user: target user
@@ -87,7 +186,7 @@ public class P2PHub extends Thread {
 				return;
 			}
 		}
-		System.out.println("Error: Private messaging to " + dest + " not enabled");
+		listener.notice("Error: Private messaging to " + dest + " not enabled");
 	}
 	
 	/**
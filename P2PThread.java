@@ -7,6 +7,8 @@ public class P2PThread extends Thread {
 	private String sender;
 	private DataInputStream in;
 	private DataOutputStream out;
+	private Compression compression;
+	private ClientListener listener;
 	
 	/**
 	 * Thread for peer to peer messaging with another user
@@ -14,12 +16,16 @@ public class P2PThread extends Thread {
 	 * @param sender: username of other user
 	 * @param in: inputStream
 	 * @param out: outputStream
+	 * @param compress: true if both users agreed to compress messages
+	 * @param listener: gets the messages from the other user
 	 */
-	public P2PThread (Socket s, String sender, DataInputStream in, DataOutputStream out) {
+	public P2PThread (Socket s, String sender, DataInputStream in, DataOutputStream out, boolean compress, ClientListener listener) {
 		this.s = s;
 		this.sender = sender;
 		this.in = in;
 		this.out = out;
+		this.compression = compress ? new Compression() : null;
+		this.listener = listener;
 	}
 	
 	@Override
@@ -30,13 +36,13 @@ public class P2PThread extends Thread {
 			// If a stopprivate message is received, send one back and start close this thread
 			// Else print the message as normal
 			try {
-				String data = in.readUTF();
+				String data = receive();
 				if (data.startsWith("stopprivate")) {
-					System.out.println("Stopping private messaging with " + sender);
-					out.writeUTF("stopprivate");
+					listener.notice("Stopping private messaging with " + sender);
+					sendMessage("stopprivate");
 					break;
 				} else {
-					System.out.println(sender + " (private): " + data);
+					listener.privateMessage(sender, data);
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -57,14 +63,34 @@ public class P2PThread extends Thread {
 	 * Send a message to the other user
 	 * @param message: body to send
 	 */
-	public void sendMessage (String message) {
+	public synchronized void sendMessage (String message) {
 		try {
-			out.writeUTF(message);
+			// Each message is flagged with whether it is compressed
+			byte[] bytes = (compression == null) ? null : compression.compress(message);
+			if (bytes == null) {
+				out.writeBoolean(false);
+				out.writeUTF(message);
+			} else {
+				out.writeBoolean(true);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Read one message from the other user
+	 */
+	private String receive () throws IOException {
+		if (!in.readBoolean()) return in.readUTF();
+		byte[] bytes = new byte[Packet.checkLength(in.readInt())];
+		in.readFully(bytes);
+		return compression.decompress(bytes);
+	}
+	
 	/**
 	 * Get the other user being messaged with
 	 */
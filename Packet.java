@@ -1,12 +1,38 @@
-import java.io.Serializable;
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
 
 public class Packet implements Serializable {
 	
 	private static final long serialVersionUID = -6212610998539622147L;
+	
+	// Largest frame either side accepts, a longer length can only come from a broken or hostile peer
+	public static final int MAX_FRAME = 1 << 20;
+	
+	// Every packet type, decoded without allocating by the server
+	public static final String[] TYPES = {"LOGIN", "WELCOMEPORT", "MESSAGE", "BROADCAST", "WHOELSE", 
+			"WHOELSESINCE", "BLOCK", "UNBLOCK", "WATCH", "UNWATCH", "JOIN", "LEAVE", "CHANNEL", "HISTORY", 
+			"HISTORYSINCE", "ACK", "STARTPRIVATE", "LOGOUT", "EXIT", "SERVER", "PRESENCE", "COMPRESS", 
+			"TIMEOUT", "ERROR", "RECEIPT", "PING", "PONG", "RELAY", "SEARCH", "OFFLINE", "HISTORYMORE"};
 	String type;
 	String payload;
 	String dest;
+	String[] dests;
 	String sender;
+	boolean more;
+	long seq;
+	long[] trace;
+	byte[] compressed;
+	// When the packet was put in an offline queue, only kept on the server
+	transient long queued;
+	// For an OFFLINE batch, when each of its messages was queued
+	transient long[] queuedTimes;
+	
+	// Set when the packet was decoded in place from a reused buffer, see readFrom
+	transient byte[] raw;
+	transient int payloadStart;
+	transient int payloadLength;
+	transient StringTable names;
 	
 	/**
 	 * Object that is sent between the server and client
@@ -17,7 +43,12 @@ public class Packet implements Serializable {
 		this.type = type;
 		this.payload = payload;
 		this.dest = null;
+		this.dests = null;
 		this.sender = null;
+		this.more = false;
+		this.seq = 0;
+		this.trace = null;
+		this.compressed = null;
 	}
 	
 	/**
@@ -34,6 +65,14 @@ public class Packet implements Serializable {
 		return dest;
 	}
 	
+	/**
+	 * Get the usernames of a message sent to several users
+	 * @return the destinations, null if the packet has a single destination or none
+	 */
+	public String[] getDests() {
+		return dests;
+	}
+	
 	/**
 	 * Get the packet sender username
 	 */
@@ -45,9 +84,62 @@ public class Packet implements Serializable {
 	 * Get the packet message body
 	 */
 	public String getPayload() {
+		if (payload == null && raw != null) {
+			payload = names.get(raw, payloadStart, payloadLength);
+			raw = null;
+		}
 		return payload;
 	}
 	
+	/**
+	 * Get the message body as a number, without turning it into a String first
+	 */
+	public long getPayloadLong() {
+		if (raw == null) return Long.parseLong(getPayload().trim());
+		long result = 0;
+		boolean negative = false;
+		int end = payloadStart + payloadLength;
+		for (int i = payloadStart; i < end; i++) {
+			byte b = raw[i];
+			if (i == payloadStart && b == '-') negative = true;
+			else if (b >= '0' && b <= '9') result = result * 10 + (b - '0');
+			else throw new NumberFormatException("Not a number: " + getPayload());
+		}
+		if (payloadLength == 0 || (negative && payloadLength == 1)) throw new NumberFormatException("Not a number");
+		return negative ? -result : result;
+	}
+	
+	/**
+	 * Get one space separated word of the message body without splitting all of it
+	 * Known strings such as usernames are not allocated again
+	 * @param index: position of the word, starting at 0
+	 * @return the word, null if there are not enough words
+	 */
+	public String getPayloadToken(int index) {
+		if (raw == null) {
+			String s = getPayload();
+			if (s == null) return null;
+			int start = 0;
+			for (int i = 0; i < index; i++) {
+				start = s.indexOf(' ', start);
+				if (start == -1) return null;
+				start++;
+			}
+			int end = s.indexOf(' ', start);
+			return s.substring(start, (end == -1) ? s.length() : end);
+		}
+		int start = payloadStart;
+		int end = payloadStart + payloadLength;
+		for (int i = 0; i < index; i++) {
+			while (start < end && raw[start] != ' ') start++;
+			if (start == end) return null;
+			start++;
+		}
+		int stop = start;
+		while (stop < end && raw[stop] != ' ') stop++;
+		return names.get(raw, start, stop - start);
+	}
+	
 	/**
 	 * Set the destination user
 	 */
@@ -55,6 +147,13 @@ public class Packet implements Serializable {
 		this.dest = user;
 	}
 	
+	/**
+	 * Set the destination users of a message sent to several users
+	 */
+	public void setDests(String[] users) {
+		this.dests = users;
+	}
+	
 	/**
 	 * Set the message sender
 	 */
@@ -67,6 +166,313 @@ public class Packet implements Serializable {
 	 */
 	public void setPayload(String payload) {
 		this.payload = payload;
+		this.raw = null;
+	}
+	
+	/**
+	 * Get the delivery sequence number, 0 if the packet doesn't need to be acknowledged
+	 */
+	public long getSeq() {
+		return seq;
+	}
+	
+	/**
+	 * Set the delivery sequence number the receiver acknowledges
+	 */
+	public void setSeq(long seq) {
+		this.seq = seq;
+	}
+	
+	/**
+	 * Get a copy of this packet with a compressed payload
+	 * The packet itself is left alone as it may also be queued or sent to other users
+	 * @param compression: compressor of the connection the packet is sent on
+	 * @return the compressed copy, or this packet if compressing isn't worth it
+	 */
+	public Packet compress(Compression compression) {
+		if (getPayload() == null || compressed != null) return this;
+		byte[] bytes = compression.compress(payload);
+		if (bytes == null) return this;
+		Packet copy = new Packet(type, null);
+		copy.dest = dest;
+		copy.dests = dests;
+		copy.sender = sender;
+		copy.more = more;
+		copy.seq = seq;
+		copy.trace = trace;
+		copy.compressed = bytes;
+		return copy;
+	}
+	
+	/**
+	 * Restore the payload of a received packet if it was compressed
+	 * @param compression: compressor of the connection the packet arrived on
+	 */
+	public void decompress(Compression compression) throws IOException {
+		if (compressed == null) return;
+		payload = compression.decompress(compressed);
+		compressed = null;
+	}
+	
+	/**
+	 * Encode the packet for sending in a frame
+	 * A flags byte says which of the optional fields follow
+	 * @param out: stream to write the packet to
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		getPayload();
+		int flags = (payload != null ? 1 : 0) | (dest != null ? 2 : 0) | (sender != null ? 4 : 0)
+				| (more ? 8 : 0) | (compressed != null ? 16 : 0) | (seq != 0 ? 32 : 0) | (dests != null ? 64 : 0)
+				| (trace != null ? 128 : 0);
+		out.writeByte(flags);
+		writeString(out, type);
+		if (payload != null) writeString(out, payload);
+		if (dest != null) writeString(out, dest);
+		if (sender != null) writeString(out, sender);
+		if (compressed != null) {
+			out.writeInt(compressed.length);
+			out.write(compressed);
+		}
+		if (seq != 0) out.writeLong(seq);
+		if (dests != null) {
+			out.writeInt(dests.length);
+			for (String d : dests) writeString(out, d);
+		}
+		if (trace != null) {
+			out.writeByte(trace.length);
+			for (long stamp : trace) out.writeLong(stamp);
+		}
+	}
+	
+	/**
+	 * Decode a packet written by writeTo
+	 * @param in: stream to read the packet from
+	 * @return the packet
+	 */
+	public static Packet readFrom(DataInput in) throws IOException {
+		int flags = in.readUnsignedByte();
+		Packet p = new Packet(readString(in), null);
+		if ((flags & 1) != 0) p.payload = readString(in);
+		if ((flags & 2) != 0) p.dest = readString(in);
+		if ((flags & 4) != 0) p.sender = readString(in);
+		p.more = (flags & 8) != 0;
+		if ((flags & 16) != 0) {
+			p.compressed = new byte[checkLength(in.readInt())];
+			in.readFully(p.compressed);
+		}
+		if ((flags & 32) != 0) p.seq = in.readLong();
+		if ((flags & 64) != 0) {
+			// Every name takes at least its 4 byte length, so a frame can't hold more than this
+			int count = in.readInt();
+			if (count < 0 || count > MAX_FRAME / 4) throw new ProtocolException("Bad recipient count " + count);
+			p.dests = new String[count];
+			for (int i = 0; i < p.dests.length; i++) p.dests[i] = readString(in);
+		}
+		if ((flags & 128) != 0) {
+			p.trace = new long[in.readUnsignedByte()];
+			for (int i = 0; i < p.trace.length; i++) p.trace[i] = in.readLong();
+		}
+		return p;
+	}
+	
+	/**
+	 * Decode a packet in place from a buffer that is reused for the next packet
+	 * Packet types, usernames and other known strings come from the table, and the payload is
+	 * only decoded if it is asked for, so nothing is allocated for most requests.
+	 * @param buffer: buffer holding one encoded packet
+	 * @param length: length of the packet in the buffer
+	 * @param names: known strings
+	 * @throws ProtocolException if a field or count doesn't fit in the length of the packet
+	 */
+	public void readFrom(byte[] buffer, int length, StringTable names) throws ProtocolException {
+		int pos = 0;
+		require(pos, 1, length);
+		int flags = buffer[pos++] & 0xff;
+		int n = fieldLength(buffer, pos, length);
+		type = names.get(buffer, pos + 4, n);
+		pos += 4 + n;
+		
+		payload = null;
+		raw = null;
+		if ((flags & 1) != 0) {
+			payloadLength = fieldLength(buffer, pos, length);
+			payloadStart = pos + 4;
+			raw = buffer;
+			this.names = names;
+			pos = payloadStart + payloadLength;
+		}
+		dest = null;
+		if ((flags & 2) != 0) {
+			n = fieldLength(buffer, pos, length);
+			dest = names.get(buffer, pos + 4, n);
+			pos += 4 + n;
+		}
+		sender = null;
+		if ((flags & 4) != 0) {
+			n = fieldLength(buffer, pos, length);
+			sender = names.get(buffer, pos + 4, n);
+			pos += 4 + n;
+		}
+		more = (flags & 8) != 0;
+		compressed = null;
+		if ((flags & 16) != 0) {
+			n = fieldLength(buffer, pos, length);
+			compressed = java.util.Arrays.copyOfRange(buffer, pos + 4, pos + 4 + n);
+			pos += 4 + n;
+		}
+		seq = 0;
+		if ((flags & 32) != 0) {
+			require(pos, 8, length);
+			seq = ((long)readInt(buffer, pos) << 32) | (readInt(buffer, pos + 4) & 0xffffffffL);
+			pos += 8;
+		}
+		dests = null;
+		if ((flags & 64) != 0) {
+			require(pos, 4, length);
+			int count = readInt(buffer, pos);
+			pos += 4;
+			if (count < 0 || count > (length - pos) / 4) throw new ProtocolException("Bad recipient count " + count);
+			dests = new String[count];
+			for (int i = 0; i < dests.length; i++) {
+				n = fieldLength(buffer, pos, length);
+				dests[i] = names.get(buffer, pos + 4, n);
+				pos += 4 + n;
+			}
+		}
+		trace = null;
+		if ((flags & 128) != 0) {
+			// Stamps are only allocated for the packets that are traced
+			require(pos, 1, length);
+			int count = buffer[pos++] & 0xff;
+			require(pos, count * 8, length);
+			trace = new long[count];
+			for (int i = 0; i < trace.length; i++) {
+				trace[i] = ((long)readInt(buffer, pos) << 32) | (readInt(buffer, pos + 4) & 0xffffffffL);
+				pos += 8;
+			}
+		}
+	}
+	
+	/**
+	 * Check a length read off the wire before anything is allocated for it
+	 * @param length: length that was read
+	 * @return the length, if it is between 0 and MAX_FRAME
+	 */
+	public static int checkLength(int length) throws ProtocolException {
+		if (length < 0 || length > MAX_FRAME) throw new ProtocolException("Bad length " + length);
+		return length;
+	}
+	
+	/**
+	 * Read the length of a string field and check that the string is inside the packet
+	 * @param b: buffer holding the packet
+	 * @param pos: position of the length
+	 * @param length: length of the packet
+	 * @return the length of the string
+	 */
+	private static int fieldLength(byte[] b, int pos, int length) throws ProtocolException {
+		require(pos, 4, length);
+		int n = readInt(b, pos);
+		if (n < 0 || n > length - pos - 4) throw new ProtocolException("Bad field length " + n);
+		return n;
+	}
+	
+	// Check that count bytes from pos are inside the packet, so nothing is read from an earlier frame
+	private static void require(int pos, int count, int length) throws ProtocolException {
+		if (pos > length - count) throw new ProtocolException("Packet ends early");
+	}
+	
+	private static int readInt(byte[] b, int pos) {
+		return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16) | ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+	}
+	
+	// Strings are written with an int length so payloads aren't limited to 64KB like writeUTF
+	private static void writeString(DataOutput out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInput in) throws IOException {
+		byte[] bytes = new byte[checkLength(in.readInt())];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Get the trace stamps, indexed by the stages in Trace
+	 * @return the stamps, null if the packet isn't traced
+	 */
+	public long[] getTrace() {
+		return trace;
+	}
+	
+	/**
+	 * Carry the stamps of another packet, e.g. from a request on to the message it delivers
+	 * @param trace: stamps, null to stop tracing
+	 */
+	public void setTrace(long[] trace) {
+		this.trace = trace;
+	}
+	
+	/**
+	 * Trace this packet from here, stamping the first stage
+	 */
+	public void startTrace() {
+		trace = new long[Trace.STAGES];
+		trace[Trace.CLIENT_SEND] = Trace.now();
+	}
+	
+	/**
+	 * Stamp the current time for a stage, if the packet is traced
+	 * @param stage: one of the stages in Trace
+	 */
+	public void stamp(int stage) {
+		if (trace != null && stage < trace.length) trace[stage] = Trace.now();
+	}
+	
+	/**
+	 * Get the time the packet was put in an offline queue
+	 * @return the time in milliseconds, 0 if it hasn't been queued
+	 */
+	public long getQueued() {
+		return queued;
+	}
+	
+	/**
+	 * Set the time the packet was put in an offline queue
+	 */
+	public void setQueued(long queued) {
+		this.queued = queued;
+	}
+	
+	/**
+	 * Get the times the messages of an OFFLINE batch were queued, in the order of the payload
+	 * @return the times in milliseconds, null if the packet isn't a batch made on this server
+	 */
+	public long[] getQueuedTimes() {
+		return queuedTimes;
+	}
+	
+	/**
+	 * Set the times the messages of an OFFLINE batch were queued
+	 */
+	public void setQueuedTimes(long[] queuedTimes) {
+		this.queuedTimes = queuedTimes;
+	}
+	
+	/**
+	 * Check if more packets follow as part of the same response
+	 */
+	public boolean isMore() {
+		return more;
+	}
+	
+	/**
+	 * Mark that more packets follow as part of the same response
+	 */
+	public void setMore(boolean more) {
+		this.more = more;
 	}
 	
 	
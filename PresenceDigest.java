@@ -0,0 +1,91 @@
+import java.util.*;
+
+public class PresenceDigest extends Thread {
+	
+	private Server server;
+	private long window;
+	private Map<Integer, Boolean> events;
+	
+	/**
+	 * Thread that coalesces login/logout notifications and sends them out as one digest
+	 * @param server: server to deliver the digests through
+	 * @param window: amount of seconds events are collected for before being sent
+	 */
+	public PresenceDigest(Server server, long window) {
+		this.server = server;
+		this.window = window;
+		this.events = new LinkedHashMap<>();
+		setDaemon(true);
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(window * 1000);
+				flush();
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Record a login or logout for the next digest
+	 * A login followed by a logout (or the other way around) in the same window cancels out
+	 * @param id: ID of the user that logged in or out
+	 * @param joined: true for a login, false for a logout
+	 */
+	public synchronized void add(int id, boolean joined) {
+		Boolean pending = events.get(id);
+		if (pending != null && pending != joined) events.remove(id);
+		else events.put(id, joined);
+	}
+	
+	/**
+	 * Send the collected events to every online client and start a new window
+	 */
+	public void flush() {
+		Map<Integer, Boolean> toSend;
+		synchronized (this) {
+			if (events.isEmpty()) return;
+			toSend = events;
+			events = new LinkedHashMap<>();
+		}
+		IdSet joined = new IdSet();
+		IdSet left = new IdSet();
+		for (Map.Entry<Integer, Boolean> e : toSend.entrySet()) {
+			if (e.getValue()) joined.add(e.getKey());
+			else left.add(e.getKey());
+		}
+		server.sendPresenceDigest(joined.toArray(), left.toArray());
+	}
+	
+	/**
+	 * Build the digest text for one client
+	 * @param server: server to get the usernames from
+	 * @param viewer: user receiving the digest
+	 * @param joined: IDs of the users that logged in during the window
+	 * @param left: IDs of the users that logged out during the window
+	 * @return the digest e.g. "joined: a, b; left: c", null if there is nothing for this viewer
+	 */
+	public static String format(Server server, User viewer, int[] joined, int[] left) {
+		String in = filter(server, viewer, joined);
+		String out = filter(server, viewer, left);
+		if (in.isEmpty() && out.isEmpty()) return null;
+		if (out.isEmpty()) return "joined: " + in;
+		if (in.isEmpty()) return "left: " + out;
+		return "joined: " + in + "; left: " + out;
+	}
+	
+	private static String filter(Server server, User viewer, int[] users) {
+		StringBuilder result = new StringBuilder();
+		for (int u : users) {
+			if (u == viewer.getId() || !viewer.wantsPresence(u)) continue;
+			if (result.length() > 0) result.append(", ");
+			result.append(server.getUser(u).getUsername());
+		}
+		return result.toString();
+	}
+	
+}
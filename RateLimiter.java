@@ -0,0 +1,88 @@
+import java.util.*;
+
+public class RateLimiter {
+	
+	// Commands per second and burst allowed for each user, commands not listed are not limited
+	private static final Map<String, double[]> LIMITS = new HashMap<>();
+	static {
+		LIMITS.put("MESSAGE", new double[] {10, 20});
+		LIMITS.put("BROADCAST", new double[] {1, 5});
+		LIMITS.put("CHANNEL", new double[] {5, 10});
+		LIMITS.put("WHOELSE", new double[] {2, 5});
+		LIMITS.put("WHOELSESINCE", new double[] {2, 5});
+		LIMITS.put("HISTORY", new double[] {2, 5});
+		LIMITS.put("HISTORYSINCE", new double[] {2, 5});
+		LIMITS.put("HISTORYMORE", new double[] {2, 5});
+		LIMITS.put("SEARCH", new double[] {2, 5});
+	}
+	
+	// Commands that are never rejected, turning them away would leave sessions in a bad state
+	private static final Set<String> EXEMPT = new HashSet<>(Arrays.asList("LOGIN", "LOGOUT", "EXIT", "ACK", "WELCOMEPORT"));
+	
+	private static final double GLOBAL_RATE = 20000;
+	private static final int GLOBAL_BURST = 40000;
+	
+	// Number of requests waiting for the server lock, or for one shard, at which the server counts as overloaded
+	private static final int OVERLOAD_QUEUE = 64;
+	
+	private Server server;
+	private TokenBucket global;
+	private Metrics metrics;
+	private volatile boolean perUser;
+	
+	/**
+	 * Limits how fast commands are accepted, per user and command and for the whole server
+	 * @param server: server the commands are for
+	 * @param metrics: where the rejected requests are counted
+	 */
+	public RateLimiter(Server server, Metrics metrics) {
+		this.server = server;
+		this.metrics = metrics;
+		this.global = new TokenBucket(GLOBAL_RATE, GLOBAL_BURST);
+		this.perUser = true;
+	}
+	
+	/**
+	 * Turn the per-user limits on or off, e.g. off for load tests that send faster than a person
+	 * The server wide limit always applies.
+	 */
+	public void setPerUserLimits(boolean on) {
+		this.perUser = on;
+	}
+	
+	/**
+	 * Check if a command can be handled now
+	 * Does not take any locks, so it can be called before the server lock
+	 * @param user: user sending the command, null if not logged in
+	 * @param type: packet type of the command
+	 * @return null if the command is allowed, otherwise the error to send back
+	 */
+	public String check(User user, String type) {
+		return check(user, type, 1);
+	}
+	
+	/**
+	 * Check if a command that counts as several, e.g. a message to several users, can be handled now
+	 * Either all the tokens are taken or none are.
+	 * @param user: user sending the command, null if not logged in
+	 * @param type: packet type of the command
+	 * @param cost: number of tokens the command takes from the user's limit
+	 * @return null if the command is allowed, otherwise the error to send back
+	 */
+	public String check(User user, String type, int cost) {
+		if (EXEMPT.contains(type)) return null;
+		
+		double[] limit = LIMITS.get(type);
+		if (perUser && user != null && limit != null && !user.getBucket(type, limit[0], (int)limit[1]).tryAcquire(cost)) {
+			metrics.increment("rejected.user." + type);
+			return "Error: Too many " + type.toLowerCase() + " requests, please slow down";
+		}
+		
+		if (server.getQueueLength() >= OVERLOAD_QUEUE || !global.tryAcquire()) {
+			metrics.increment("rejected.global");
+			return "Error: Server is busy, please try again later";
+		}
+		return null;
+	}
+
+}
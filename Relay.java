@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Relay extends Thread {
+	
+	private static final int BUFFER_SIZE = 16 * 1024;
+	// A relay that the second user hasn't joined after this long is given up on, and so is
+	// a connection that hasn't sent its token
+	private static final long PAIRING_TIMEOUT = 10000;
+	
+	private ServerSocketChannel listener;
+	private Selector selector;
+	private Metrics metrics;
+	private Map<Long, Session> pending;
+	private SecureRandom random;
+	private static Debug debug = new Debug();
+	
+	/**
+	 * Relays private connections through the server for users that can't reach each other directly
+	 * Both users connect to the relay port and send the token the server gave them, after which
+	 * the relay copies bytes between the two sockets as they are, without decoding anything.
+	 * One thread does all of it with a selector, each direction has one direct buffer, and a
+	 * direction stops reading while the other side can't keep up.
+	 * @param server: server the relay belongs to, traffic is counted in its metrics
+	 * @param address: address to listen on, null for every address
+	 */
+	public Relay(Server server, InetAddress address) throws IOException {
+		super("relay");
+		this.metrics = server.getMetrics();
+		this.pending = new ConcurrentHashMap<>();
+		this.random = new SecureRandom();
+		this.selector = Selector.open();
+		this.listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(address, 0));
+		listener.configureBlocking(false);
+		listener.register(selector, SelectionKey.OP_ACCEPT);
+		setDaemon(true);
+		debug.set(server.getDebug());
+	}
+	
+	@Override
+	public void run() {
+		while (selector.isOpen()) {
+			try {
+				selector.select(1000);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) accept();
+						else if (key.attachment() instanceof Joining) handshake(key);
+						else {
+							if (key.isValid() && key.isReadable()) read((Side)key.attachment());
+							if (key.isValid() && key.isWritable()) write((Side)key.attachment());
+						}
+					} catch (IOException e) {
+						debug.print(e.getMessage());
+						closeKey(key);
+					}
+				}
+				expire();
+			} catch (IOException | ClosedSelectorException e) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Get the port the relay listens on
+	 */
+	public int getPort() {
+		return listener.socket().getLocalPort();
+	}
+	
+	/**
+	 * Set up a relay between two users
+	 * @param source: user that asked for it
+	 * @param target: user it connects to
+	 * @return the token both users send to join the relay
+	 */
+	public long open(String source, String target) {
+		long token = random.nextLong();
+		pending.put(token, new Session(token, source, target));
+		return token;
+	}
+	
+	/**
+	 * Stop relaying, closing every relayed connection
+	 */
+	public void close() {
+		try {
+			for (SelectionKey key : selector.keys()) key.channel().close();
+			selector.close();
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel channel = listener.accept();
+		if (channel == null) return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		// Until it is paired the connection only reads its 8 byte token
+		channel.register(selector, SelectionKey.OP_READ, new Joining());
+	}
+	
+	private void handshake(SelectionKey key) throws IOException {
+		ByteBuffer token = ((Joining)key.attachment()).token;
+		SocketChannel channel = (SocketChannel)key.channel();
+		if (channel.read(token) == -1) throw new IOException("Relay closed before joining");
+		if (token.hasRemaining()) return;
+		
+		token.flip();
+		Session session = pending.get(token.getLong());
+		if (session == null) throw new IOException("Unknown relay token");
+		if (session.first == null) {
+			// Wait for the other user without reading anything else, the session's timeout applies now
+			session.first = key;
+			key.attach(session);
+			key.interestOps(0);
+			return;
+		}
+		pending.remove(session.token);
+		splice(session, session.first, key);
+	}
+	
+	/**
+	 * Start copying between the two connections of a session
+	 */
+	private void splice(Session session, SelectionKey a, SelectionKey b) {
+		Side first = new Side(session, a);
+		Side second = new Side(session, b);
+		first.peer = second;
+		second.peer = first;
+		a.attach(first);
+		b.attach(second);
+		a.interestOps(SelectionKey.OP_READ);
+		b.interestOps(SelectionKey.OP_READ);
+		metrics.increment("relay.opened");
+		metrics.gauge("relay." + session.name, () -> session.bytes);
+		debug.print("Relaying " + session.name);
+	}
+	
+	/**
+	 * Read from one side and pass it straight on to the other
+	 */
+	private void read(Side side) throws IOException {
+		int n = side.channel.read(side.buffer);
+		if (n == -1) throw new IOException("Relay " + side.session.name + " closed");
+		side.session.bytes += n;
+		side.buffer.flip();
+		side.peer.channel.write(side.buffer);
+		if (side.buffer.hasRemaining()) {
+			// The other side is behind, stop reading until it has taken what is buffered
+			side.key.interestOps(side.key.interestOps() & ~SelectionKey.OP_READ);
+			side.peer.key.interestOps(side.peer.key.interestOps() | SelectionKey.OP_WRITE);
+		} else {
+			side.buffer.clear();
+		}
+	}
+	
+	/**
+	 * Write what the other side read while this side was behind
+	 */
+	private void write(Side side) throws IOException {
+		ByteBuffer waiting = side.peer.buffer;
+		side.channel.write(waiting);
+		if (waiting.hasRemaining()) return;
+		waiting.clear();
+		side.key.interestOps(side.key.interestOps() & ~SelectionKey.OP_WRITE);
+		side.peer.key.interestOps(side.peer.key.interestOps() | SelectionKey.OP_READ);
+	}
+	
+	/**
+	 * Close a connection and, if it was relaying, the other user's as well
+	 */
+	private void closeKey(SelectionKey key) {
+		Object attachment = key.attachment();
+		try {
+			key.channel().close();
+			if (attachment instanceof Side) {
+				Side side = (Side)attachment;
+				if (side.peer.channel.isOpen()) {
+					side.peer.channel.close();
+					metrics.add("relay.bytes", side.session.bytes);
+					metrics.removeGauge("relay." + side.session.name);
+					debug.print("Relay " + side.session.name + " closed after " + side.session.bytes + " bytes");
+				}
+			}
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Give up on relays the second user never joined, and on connections that never sent a token
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Joining && now - ((Joining)key.attachment()).accepted >= PAIRING_TIMEOUT) {
+				closeKey(key);
+				metrics.increment("relay.expired.unjoined");
+			}
+		}
+		Iterator<Session> sessions = pending.values().iterator();
+		while (sessions.hasNext()) {
+			Session session = sessions.next();
+			if (now - session.created < PAIRING_TIMEOUT) continue;
+			sessions.remove();
+			if (session.first != null) closeKey(session.first);
+			metrics.increment("relay.expired");
+		}
+	}
+	
+	/**
+	 * A connection that has been accepted but hasn't sent its whole token yet
+	 */
+	private static class Joining {
+		
+		private ByteBuffer token = ByteBuffer.allocate(8);
+		private long accepted = System.currentTimeMillis();
+	}
+	
+	/**
+	 * A relay between two users, from the request until both connections are closed
+	 */
+	private static class Session {
+		
+		private long token;
+		private String name;
+		private long created;
+		private SelectionKey first;
+		// Only written by the relay thread
+		private volatile long bytes;
+		
+		Session(long token, String source, String target) {
+			this.token = token;
+			this.name = source + "-" + target;
+			this.created = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * One connection of a relay, with the bytes read from it that are on their way to the other
+	 */
+	private static class Side {
+		
+		private Session session;
+		private SelectionKey key;
+		private SocketChannel channel;
+		private ByteBuffer buffer;
+		private Side peer;
+		
+		Side(Session session, SelectionKey key) {
+			this.session = session;
+			this.key = key;
+			this.channel = (SocketChannel)key.channel();
+			this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	}
+	
+}
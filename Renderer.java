@@ -0,0 +1,188 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class Renderer extends Thread implements ClientListener {
+	
+	private BlockingQueue<String> lines;
+	private Writer out;
+	private volatile boolean idle;
+	
+	/**
+	 * Last stage of the terminal client, turns callbacks into lines and writes them out in batches
+	 * Lines are only queued by the decode thread, so a slow terminal never holds up receiving,
+	 * and a burst of messages is written with one flush instead of one per line.
+	 * @param out: stream to write to, usually System.out
+	 */
+	public Renderer(OutputStream out) {
+		this.lines = new LinkedBlockingQueue<>();
+		this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+		this.idle = true;
+		setDaemon(true);
+	}
+	
+	@Override
+	public void run() {
+		List<String> batch = new ArrayList<>();
+		while (true) {
+			try {
+				batch.add(lines.take());
+				idle = false;
+				lines.drainTo(batch);
+				for (String line : batch) {
+					out.write(line);
+					out.write(System.lineSeparator());
+				}
+				out.flush();
+				batch.clear();
+				idle = lines.isEmpty();
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				batch.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Queue a line to be written
+	 */
+	public void print(String line) {
+		lines.add(line);
+	}
+	
+	/**
+	 * Wait for everything queued so far to be written
+	 * @param millis: longest time to wait
+	 */
+	public void finish(long millis) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		while (!(lines.isEmpty() && idle) && System.nanoTime() < end) Thread.sleep(5);
+	}
+	
+	@Override
+	public void connected() {
+		print("Pleast enter your username:");
+	}
+	
+	@Override
+	public void loggedIn() {
+		print("Welcome to the greatest messaging application ever!");
+	}
+	
+	@Override
+	public void loginFailed(String status) {
+		switch (status) {
+		case "BLOCK":
+			print("Invalid Password. Your account has been blocked. Please try again later");
+			break;
+		case "BLOCKED":
+			print("Your account is blocked due to multiple login failures. Please try again later");
+			break;
+		case "USERNAME":
+			print("Invalid username. Please try again");
+			break;
+		case "PASSWORD":
+			print("Invalid password. Please try again");
+			break;
+		case "ONLINE":
+			print("This user is already online, please try another account");
+			break;
+		default:
+			print("Something went wrong, please try again");
+			break;
+		}
+		print("Pleast enter your username:");
+	}
+	
+	@Override
+	public void message(String sender, String message) {
+		print(sender + ": " + message);
+	}
+	
+	@Override
+	public void receipt(Map<String, String> outcomes) {
+		List<String> delivered = new ArrayList<>();
+		List<String> queued = new ArrayList<>();
+		List<String> blocked = new ArrayList<>();
+		List<String> invalid = new ArrayList<>();
+		for (Map.Entry<String, String> outcome : outcomes.entrySet()) {
+			switch (outcome.getValue()) {
+			case "DELIVERED":
+				delivered.add(outcome.getKey());
+				break;
+			case "QUEUED":
+				queued.add(outcome.getKey());
+				break;
+			case "BLOCKED":
+				blocked.add(outcome.getKey());
+				break;
+			default:
+				invalid.add(outcome.getKey());
+				break;
+			}
+		}
+		if (!delivered.isEmpty()) print("Message delivered to " + String.join(", ", delivered));
+		if (!queued.isEmpty()) print("Message queued for offline users " + String.join(", ", queued));
+		if (!blocked.isEmpty()) print("Your message could not be delivered to users that have blocked you: " + String.join(", ", blocked));
+		if (!invalid.isEmpty()) print("Error: Invalid user " + String.join(", ", invalid));
+	}
+	
+	@Override
+	public void channelMessage(String channel, String sender, String message) {
+		print("[" + channel + "] " + sender + ": " + message);
+	}
+	
+	@Override
+	public void privateMessage(String sender, String message) {
+		print(sender + " (private): " + message);
+	}
+	
+	@Override
+	public void history(String user, String page, boolean more) {
+		print(page);
+		if (more) print("Type historymore for more messages with " + user);
+		else print("End of history with " + user);
+	}
+	
+	@Override
+	public void searchResults(String query, String hits, boolean more) {
+		print(hits);
+		if (more) print("Type searchmore for more messages matching " + query);
+		else print("End of messages matching " + query);
+	}
+	
+	@Override
+	public void notice(String text) {
+		print(text);
+	}
+	
+	@Override
+	public void loggedOut(String reason) {
+		switch (reason) {
+		case "EXIT":
+			print("You have been logged out");
+			print("Goodbye");
+			break;
+		case "TIMEOUT":
+			print("You timed out due to inactivity, please log back in again");
+			print("Pleast enter your username:");
+			break;
+		default:
+			print("You have been logged out");
+			print("Pleast enter your username:");
+			break;
+		}
+	}
+	
+	@Override
+	public void disconnected() {
+		print("Could not reconnect to the server");
+	}
+	
+}
@@ -0,0 +1,410 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class SearchIndex extends Thread {
+	
+	// Messages in the segment being built before it is frozen
+	private static final int SEGMENT_DOCS = 4096;
+	// Segments of the same size class that are merged into one
+	private static final int MERGE_FACTOR = 4;
+	private static final int MAX_TERM_LENGTH = 64;
+	
+	private FileChannel log;
+	private long end;
+	private long[] offsets;
+	private int docs;
+	private Map<String, Integer> terms;
+	private IndexSegment.Builder active;
+	// Frozen segments oldest first, replaced rather than changed so searches can use a snapshot
+	private volatile List<IndexSegment> segments;
+	private BlockingQueue<Doc> queue;
+	private Thread merger;
+	private Server server;
+	private Metrics metrics;
+	private static Debug debug = new Debug();
+	
+	/**
+	 * Full text index over the messages users have sent and received
+	 * Messages are queued by the delivery path and indexed on this thread, so sending never
+	 * waits for the index. Each message is appended to a log and its words are added to the
+	 * postings lists of its sender and recipients in an in-memory segment. Full segments are
+	 * frozen and merged in the background, MERGE_FACTOR at a time, so a search only has to
+	 * look at a handful of them. The index is rebuilt from the log when the server starts.
+	 * @param server: server the index belongs to, searches are counted in its metrics
+	 * @param dir: directory to keep the message log in
+	 */
+	public SearchIndex(Server server, File dir) throws IOException {
+		super("indexer");
+		this.server = server;
+		this.metrics = server.getMetrics();
+		this.offsets = new long[1024];
+		this.terms = new ConcurrentHashMap<>();
+		this.active = new IndexSegment.Builder();
+		this.segments = Collections.emptyList();
+		this.queue = new LinkedBlockingQueue<>();
+		debug.set(server.getDebug());
+		dir.mkdirs();
+		this.log = FileChannel.open(new File(dir, "messages.log").toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		rebuild();
+		this.merger = new Thread(this::mergeLoop, "index-merger");
+		merger.setDaemon(true);
+		setDaemon(true);
+		metrics.gauge("search.segments", this::getSegmentCount);
+		metrics.gauge("search.backlog", () -> queue.size());
+	}
+	
+	/**
+	 * Queue a message sent to one user to be indexed
+	 * @param sender: ID of the user that sent it
+	 * @param recipient: ID of the user it was sent to
+	 * @param text: body
+	 */
+	public void add(int sender, int recipient, String text) {
+		queue.offer(new Doc(System.currentTimeMillis(), sender, new int[] {sender, recipient}, text));
+	}
+	
+	/**
+	 * Queue a broadcast to be indexed
+	 * @param sender: ID of the user that sent it
+	 * @param recipients: bitmap of the users it was sent to, indexed by ID
+	 * @param text: body
+	 */
+	public void add(int sender, long[] recipients, String text) {
+		int count = 1;
+		for (long word : recipients) count += Long.bitCount(word);
+		int[] users = new int[count];
+		users[0] = sender;
+		int n = 1;
+		for (int i = 0; i < recipients.length; i++) {
+			long word = recipients[i];
+			while (word != 0) {
+				users[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
+		}
+		queue.offer(new Doc(System.currentTimeMillis(), sender, users, text));
+	}
+	
+	@Override
+	public synchronized void start() {
+		merger.start();
+		super.start();
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			Doc doc;
+			try {
+				doc = queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (doc.text == null) break;
+			try {
+				append(doc);
+				metrics.increment("search.indexed");
+			} catch (IOException e) {
+				debug.print("Could not index message: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Find the messages a user sent or received that contain every word of a query
+	 * @param user: ID of the user searching
+	 * @param query: words to look for, in any case
+	 * @param page: page of results, starting at 1
+	 * @param pageSize: number of results in a page
+	 * @return the results on the page, newest first, with one more if there is a next page
+	 */
+	public List<String> search(int user, String query, int page, int pageSize) throws IOException {
+		metrics.increment("search.queries");
+		int[] ids = lookup(query);
+		if (ids == null) return Collections.emptyList();
+		
+		// The active segment and the snapshot of the frozen ones have to be taken together
+		// so a segment being frozen isn't missed
+		int wanted = page * pageSize + 1;
+		List<Integer> hits = new ArrayList<>();
+		List<IndexSegment> frozen;
+		synchronized (this) {
+			frozen = segments;
+			int[][] lists = new int[ids.length][];
+			for (int i = 0; i < ids.length; i++) lists[i] = active.get(user, ids[i]);
+			intersect(lists, hits, wanted);
+		}
+		// Newer segments come later, so the newest hits are found first and the search can stop early
+		for (int s = frozen.size() - 1; s >= 0 && hits.size() < wanted; s--) {
+			IndexSegment segment = frozen.get(s);
+			int[][] lists = new int[ids.length][];
+			for (int i = 0; i < ids.length; i++) lists[i] = segment.get(user, ids[i]);
+			intersect(lists, hits, wanted);
+		}
+		
+		List<String> results = new ArrayList<>();
+		for (int i = (page - 1) * pageSize; i < hits.size(); i++) results.add(read(hits.get(i)));
+		return results;
+	}
+	
+	/**
+	 * Get the number of frozen segments a search looks at
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+	
+	/**
+	 * Stop indexing once everything queued has been indexed, and close the log
+	 */
+	public void close() throws IOException {
+		queue.offer(new Doc(0, 0, null, null));
+		try {
+			join(5000);
+		} catch (InterruptedException e) {
+			debug.print(e.getMessage());
+		}
+		merger.interrupt();
+		log.force(false);
+		log.close();
+	}
+	
+	/**
+	 * Turn a query into the IDs of its words
+	 * @return the IDs, null if a word has never been indexed or there are no words
+	 */
+	private int[] lookup(String query) {
+		List<String> words = tokenize(query);
+		if (words.isEmpty()) return null;
+		int[] ids = new int[words.size()];
+		for (int i = 0; i < ids.length; i++) {
+			Integer id = terms.get(words.get(i));
+			if (id == null) return null;
+			ids[i] = id;
+		}
+		return ids;
+	}
+	
+	/**
+	 * Add the messages in every list to the hits, newest first, until there are enough
+	 * The lists are walked from the end together, moving whichever is ahead back.
+	 */
+	private static void intersect(int[][] lists, List<Integer> hits, int wanted) {
+		int[] at = new int[lists.length];
+		for (int i = 0; i < lists.length; i++) {
+			if (lists[i] == null) return;
+			at[i] = lists[i].length - 1;
+		}
+		while (hits.size() < wanted) {
+			int doc = Integer.MAX_VALUE;
+			for (int i = 0; i < lists.length; i++) {
+				if (at[i] < 0) return;
+				doc = Math.min(doc, lists[i][at[i]]);
+			}
+			boolean all = true;
+			for (int i = 0; i < lists.length; i++) {
+				while (at[i] >= 0 && lists[i][at[i]] > doc) at[i]--;
+				if (at[i] < 0 || lists[i][at[i]] != doc) all = false;
+			}
+			if (all) {
+				hits.add(doc);
+				for (int i = 0; i < lists.length; i++) at[i]--;
+			}
+		}
+	}
+	
+	/**
+	 * Split text into the distinct lower case words it contains
+	 */
+	private static List<String> tokenize(String text) {
+		Set<String> words = new LinkedHashSet<>();
+		for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+			if (!word.isEmpty() && word.length() <= MAX_TERM_LENGTH) words.add(word);
+		}
+		return new ArrayList<>(words);
+	}
+	
+	/**
+	 * Write a message to the end of the log and add it to the active segment
+	 */
+	private void append(Doc doc) throws IOException {
+		byte[] sender = doc.senderName().getBytes(StandardCharsets.UTF_8);
+		byte[] text = doc.text.getBytes(StandardCharsets.UTF_8);
+		// Records are [length][time][recipient count][recipients][sender][message]
+		int length = 8 + 4 + 4 * doc.users.length + 4 + sender.length + 4 + text.length;
+		ByteBuffer record = ByteBuffer.allocate(4 + length);
+		record.putInt(length);
+		record.putLong(doc.time);
+		record.putInt(doc.users.length);
+		for (int u : doc.users) record.putInt(u);
+		record.putInt(sender.length);
+		record.put(sender);
+		record.putInt(text.length);
+		record.put(text);
+		record.flip();
+		while (record.hasRemaining()) log.write(record, end + record.position());
+		index(doc.users, doc.text, end);
+		end += 4 + length;
+	}
+	
+	/**
+	 * Add a logged message to the active segment, freezing it once it is full
+	 */
+	private void index(int[] users, String text, long offset) {
+		List<String> words = tokenize(text);
+		int[] ids = new int[words.size()];
+		for (int i = 0; i < ids.length; i++) ids[i] = terms.computeIfAbsent(words.get(i), w -> terms.size());
+		
+		if (docs == offsets.length) offsets = Arrays.copyOf(offsets, docs * 2);
+		offsets[docs] = offset;
+		synchronized (this) {
+			// A broadcast's sender is also one of its users, only index it once for them
+			for (int i = 0; i < users.length; i++) {
+				if (i > 0 && users[i] == users[0]) continue;
+				active.add(users[i], ids, docs);
+			}
+			active.count();
+			docs++;
+			if (active.size() < SEGMENT_DOCS) return;
+			List<IndexSegment> next = new ArrayList<>(segments);
+			next.add(active.build());
+			segments = Collections.unmodifiableList(next);
+			active = new IndexSegment.Builder();
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Read back the log and index every complete record, cutting off one left half written
+	 */
+	private void rebuild() throws IOException {
+		long size = log.size();
+		ByteBuffer header = ByteBuffer.allocate(4);
+		while (end + 4 <= size) {
+			header.clear();
+			log.read(header, end);
+			int length = header.getInt(0);
+			if (length <= 0 || end + 4 + length > size) break;
+			ByteBuffer record = ByteBuffer.allocate(length);
+			while (record.hasRemaining() && log.read(record, end + 4 + record.position()) > 0);
+			record.flip();
+			record.getLong();
+			int[] users = new int[record.getInt()];
+			for (int i = 0; i < users.length; i++) users[i] = record.getInt();
+			int senderLength = record.getInt();
+			record.position(record.position() + senderLength);
+			byte[] text = new byte[record.getInt()];
+			record.get(text);
+			index(users, new String(text, StandardCharsets.UTF_8), end);
+			end += 4 + length;
+		}
+		if (end < size) {
+			debug.print("Dropped a half written record at the end of the search log");
+			log.truncate(end);
+		}
+		debug.print("Indexed " + docs + " messages from the search log");
+	}
+	
+	/**
+	 * Read a message from the log as "time sender: message"
+	 */
+	private String read(int doc) throws IOException {
+		long offset = offsets[doc];
+		ByteBuffer header = ByteBuffer.allocate(4);
+		log.read(header, offset);
+		ByteBuffer record = ByteBuffer.allocate(header.getInt(0));
+		while (record.hasRemaining() && log.read(record, offset + 4 + record.position()) > 0);
+		record.flip();
+		long time = record.getLong();
+		int recipients = record.getInt();
+		record.position(record.position() + 4 * recipients);
+		byte[] sender = new byte[record.getInt()];
+		record.get(sender);
+		byte[] text = new byte[record.getInt()];
+		record.get(text);
+		LocalDateTime when = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+		return when.withNano(0) + " " + new String(sender, StandardCharsets.UTF_8) + ": " + new String(text, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Merge runs of MERGE_FACTOR frozen segments of the same size class whenever a segment is frozen
+	 * Merging is done outside the lock and only the swap of the list holds it.
+	 */
+	private void mergeLoop() {
+		while (true) {
+			List<IndexSegment> current;
+			synchronized (this) {
+				try {
+					while ((current = segments) == null || findRun(current) < 0) wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			int from = findRun(current);
+			List<IndexSegment> run = new ArrayList<>(current.subList(from, from + MERGE_FACTOR));
+			IndexSegment merged = IndexSegment.merge(run);
+			synchronized (this) {
+				// Only this thread removes segments, so the run is still where it was
+				List<IndexSegment> next = new ArrayList<>(segments);
+				next.subList(from, from + MERGE_FACTOR).clear();
+				next.add(from, merged);
+				segments = Collections.unmodifiableList(next);
+			}
+			metrics.increment("search.merges");
+		}
+	}
+	
+	/**
+	 * Find MERGE_FACTOR neighbouring segments in the same size class
+	 * @return the index of the first, -1 if there are none
+	 */
+	private static int findRun(List<IndexSegment> segments) {
+		for (int i = 0; i + MERGE_FACTOR <= segments.size(); i++) {
+			int size = sizeClass(segments.get(i));
+			boolean same = true;
+			for (int j = i + 1; j < i + MERGE_FACTOR; j++) {
+				if (sizeClass(segments.get(j)) != size) same = false;
+			}
+			if (same) return i;
+		}
+		return -1;
+	}
+	
+	private static int sizeClass(IndexSegment segment) {
+		int size = 0;
+		for (long docs = segment.size() / SEGMENT_DOCS; docs >= MERGE_FACTOR; docs /= MERGE_FACTOR) size++;
+		return size;
+	}
+	
+	/**
+	 * A message waiting to be indexed
+	 */
+	private class Doc {
+		
+		private long time;
+		private int sender;
+		private int[] users;
+		private String text;
+		
+		Doc(long time, int sender, int[] users, String text) {
+			this.time = time;
+			this.sender = sender;
+			this.users = users;
+			this.text = text;
+		}
+		
+		String senderName() {
+			return server.getUser(sender).getUsername();
+		}
+	}
+	
+}
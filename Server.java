@@ -1,7 +1,17 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.time.*;
 
 public class Server {
@@ -13,6 +23,29 @@ public class Server {
 	private List<ClientHandler> clients;
 	private List<String> usernames;
 	private List<User> users;
+	private Map<String, User> userMap;
+	private AtomicReferenceArray<ClientHandler> sessions;
+	private AtomicLongArray online;
+	private IdSet[] blockedBy;
+	private Shard[] shards;
+	private Map<String, Channel> channels;
+	
+	private PresenceDigest presence;
+	private Heartbeat heartbeat;
+	private Compactor compactor;
+	private Relay relay;
+	private Tls tls;
+	private StateStore store;
+	private HistoryStore history;
+	private SearchIndex search;
+	private Metrics metrics;
+	private RateLimiter limiter;
+	private boolean compression = true;
+	private boolean batchOffline = true;
+	private StringTable names;
+	private ServerSocket welcomeSocket;
+	private FileChannel pidFile;
+	private volatile boolean draining = false;
 	
 	private ReentrantLock syncLock = new ReentrantLock();
 	private static Debug debug = new Debug();
@@ -21,7 +54,7 @@ public class Server {
 	 * Server object holding all important information
 	 * @param serverPort: Port for the welcomeSocket
 	 * @param block_duration: Time an account is locked for after 3 consecutive failed attempts
-	 * @param timeout: Amount of available inactive time before user is automatically logged out
+	 * @param timeout: Amount of available inactive time before user is automatically logged out, 0 for no limit
 	 */
 	public Server(long block_duration, long timeout) {
 		this.block_duration = block_duration;
@@ -29,7 +62,15 @@ public class Server {
 		clients = new ArrayList<>();
 		usernames = new ArrayList<>();
 		users = new ArrayList<>();
+		userMap = new HashMap<>();
+		channels = new ConcurrentHashMap<>();
+		metrics = new Metrics();
+		limiter = new RateLimiter(this, metrics);
 		generateUsers();
+		sessions = new AtomicReferenceArray<>(users.size());
+		online = new AtomicLongArray((users.size() + 63) >> 6);
+		blockedBy = new IdSet[users.size()];
+		for (int i = 0; i < blockedBy.length; i++) blockedBy[i] = new IdSet();
 	}	
 	
 	/**
@@ -52,7 +93,7 @@ public class Server {
 	 * @return true if the user exists
 	 */
 	public boolean userExists(String user) {
-		return usernames.contains(user);
+		return userMap.containsKey(user);
 	}
 	
 	/**
@@ -61,9 +102,28 @@ public class Server {
 	 * @return the user object, null if it user doesn't exist
 	 */
 	public User getUser(String user) {
-		int i = usernames.indexOf(user);
-		if (i != -1) return users.get(i);
-		else return null;
+		if (user == null) return null;
+		return userMap.get(user);
+	}
+	
+	/**
+	 * Get a user object by ID
+	 * @param id: ID of the user
+	 * @return the user object, null if the ID is not valid
+	 */
+	public User getUser(int id) {
+		if (id < 0 || id >= users.size()) return null;
+		return users.get(id);
+	}
+	
+	/**
+	 * Get the ID of a user, for turning usernames from packets into IDs
+	 * @param user: username of the user
+	 * @return the ID, -1 if the user doesn't exist
+	 */
+	public int getId(String user) {
+		User u = getUser(user);
+		return (u == null) ? -1 : u.getId();
 	}
 	
 	/**
@@ -77,16 +137,15 @@ public class Server {
 	
 	/**
 	 * Get all the online users either now or since a given time
-	 * @param requester: username of the user that has requested it
+	 * @param requester: ID of the user that has requested it
 	 * @param time: time since to check all logged in since then, null if only current is wanted
 	 * @return a string of all valid users (ignoring requester) separated by a newline char
 	 */
-	public String getOnlineUsers(String requester, LocalDateTime time) {
+	public String getOnlineUsers(int requester, LocalDateTime time) {
 		String result = "";
 		if (time != null && time.isBefore(startTime)) time = startTime;
 		for (User u : users) {
-			debug.print("Checking user " + u.getUsername());
-			if (u.getUsername().equals(requester)) continue;
+			if (u.getId() == requester) continue;
 			if (time == null) {
 				if (u.isOnline()) result = result.concat(u.getUsername() + "\n");
 			} else {
@@ -98,11 +157,11 @@ public class Server {
 	
 	/**
 	 * Check if one user has blocked another user
-	 * @param target: possible blocked user
-	 * @param source: person possibly blocking the target
+	 * @param target: ID of the possibly blocked user
+	 * @param source: ID of the person possibly blocking the target
 	 * @return true only if both exist and the source has blocked the target
 	 */
-	public boolean hasBlocked(String target, String source) {
+	public boolean hasBlocked(int target, int source) {
 		User blocker = getUser(source);
 		User victim = getUser(target);
 		if (blocker == null || victim == null) return false;
@@ -110,46 +169,333 @@ public class Server {
 		else return false;
 	}
 	
+	/**
+	 * Block a user, keeping the reverse blocked-by list in step
+	 * @param blocker: user doing the blocking
+	 * @param target: ID of the user to be blocked
+	 */
+	public void blockUser(User blocker, int target) {
+		if (blocker.blockUser(target)) blockedBy[target].add(blocker.getId());
+	}
+	
+	/**
+	 * Unblock a user, keeping the reverse blocked-by list in step
+	 * @param blocker: user that did the blocking
+	 * @param target: ID of the user to be unblocked
+	 */
+	public void unblockUser(User blocker, int target) {
+		if (blocker.unblockUser(target)) blockedBy[target].remove(blocker.getId());
+	}
+	
+	/**
+	 * Build the blocked-by lists from everyone's blocked users, after state has been restored
+	 */
+	private void indexBlocks() {
+		for (IdSet set : blockedBy) set.clear();
+		for (User u : users) {
+			for (int target : u.getBlockedUsers()) blockedBy[target].add(u.getId());
+		}
+	}
+	
+	/**
+	 * Copy the bitmap of users that are logged in, indexed by ID
+	 */
+	private long[] onlineMask() {
+		long[] mask = new long[online.length()];
+		for (int i = 0; i < mask.length; i++) mask[i] = online.get(i);
+		return mask;
+	}
+	
+	/**
+	 * Set or clear a user's bit in the online bitmap
+	 */
+	private void setOnline(int id, boolean on) {
+		long bit = 1L << id;
+		if (on) online.accumulateAndGet(id >> 6, bit, (word, b) -> word | b);
+		else online.accumulateAndGet(id >> 6, bit, (word, b) -> word & ~b);
+	}
+	
 	/**
 	 * Broadcast a message to all online users except the requester
-	 * @param sender: person to who initialised the broadcast
+	 * @param sender: ID of the person to who initialised the broadcast
 	 * @param message: message to be broadcasted
 	 * @param type: either a MESSAGE from a person or SERVER message e.g. login/logout
 	 */
-	public void broadcast (String sender, String message, String type) {
-		lock();
+	public void broadcast (int sender, String message, String type) {
 		debug.print("Broadcasting a message");
+		String name = getUser(sender).getUsername();
+		
+		// Encode the packet once and write the same bytes to every recipient
+		Packet packet = new Packet(type, message);
+		packet.setSender(name);
+		Frame frame = Frame.of(packet);
+		if (search != null && type.equals("MESSAGE")) indexBroadcast(sender, message);
+		
+		if (shards == null) {
+			lock();
+			boolean broadcastBlocked = broadcast(sender, frame, null);
+			unlock();
+			frame.release();
+			if (broadcastBlocked && type.equals("MESSAGE")) notifyBlocked(sender);
+			return;
+		}
+		
+		// Every shard sends to its own users, the last one to finish tells the sender if anyone blocked them
+		AtomicInteger remaining = new AtomicInteger(shards.length);
+		AtomicBoolean broadcastBlocked = new AtomicBoolean(false);
+		for (Shard shard : shards) {
+			frame.retain();
+			Shard.post(shard, () -> {
+				if (broadcast(sender, frame, shard.getPartition())) broadcastBlocked.set(true);
+				frame.release();
+				if (remaining.decrementAndGet() == 0 && broadcastBlocked.get() && type.equals("MESSAGE")) {
+					notifyBlocked(sender);
+				}
+			});
+		}
+		frame.release();
+	}
+	
+	/**
+	 * Send a broadcast frame to everyone online except the sender and the users that blocked them
+	 * @param sender: ID of the user that sent the broadcast
+	 * @param partition: bitmap of the users to send to, null for all of them
+	 * @return true if any recipient had blocked the sender
+	 */
+	private boolean broadcast(int sender, Frame frame, long[] partition) {
+		// Recipients are everyone online and not in the sender's blocked-by list
+		long[] mask = onlineMask();
+		if (partition != null) {
+			for (int i = 0; i < mask.length; i++) mask[i] &= partition[i];
+		}
+		mask[sender >> 6] &= ~(1L << sender);
+		boolean broadcastBlocked = blockedBy[sender].intersects(mask);
+		blockedBy[sender].removeFrom(mask);
+		sendFrame(mask, frame);
+		return broadcastBlocked;
+	}
+	
+	/**
+	 * Queue a broadcast to be indexed for the users it reaches
+	 */
+	private void indexBroadcast(int sender, String message) {
+		long[] mask = onlineMask();
+		mask[sender >> 6] &= ~(1L << sender);
+		blockedBy[sender].removeFrom(mask);
+		search.add(sender, mask, message);
+	}
+	
+	private void notifyBlocked(int sender) {
 		ClientHandler source = getClient(sender);
-		boolean broadcastBlocked = false;
-		for (ClientHandler client : clients) {
-			debug.print("Checking " + client.getUsername() + " for broadcast");
-			if (!client.isAlive()) continue;
-			if (client.getUsername() != null && !client.getUsername().equals(sender)) {
-				if (this.hasBlocked(sender, client.getUsername())) {
-					broadcastBlocked = true;
-				} else {
-					client.sendMessage(sender, message, type);
-				}		
+		if (source != null) {
+			source.sendMessage(getUser(sender).getUsername(), "Your message could not be delivered to some recipients", "SERVER");
+		}
+	}
+	
+	/**
+	 * Notify online users that someone has logged in or out
+	 * If presence digests are enabled the event is held until the end of the current window
+	 * @param id: ID of the user that logged in/out
+	 * @param joined: true for a login, false for a logout
+	 */
+	public void presence(int id, boolean joined) {
+		if (presence != null) {
+			presence.add(id, joined);
+			return;
+		}
+		String username = getUser(id).getUsername();
+		Packet packet = new Packet("SERVER", username + (joined ? " logged in" : " logged out"));
+		packet.setSender(username);
+		Frame frame = Frame.of(packet);
+		lock();
+		long[] mask = onlineMask();
+		mask[id >> 6] &= ~(1L << id);
+		blockedBy[id].removeFrom(mask);
+		for (int i = 0; i < mask.length; i++) {
+			for (long word = mask[i]; word != 0; word &= word - 1) {
+				int viewer = (i << 6) + Long.numberOfTrailingZeros(word);
+				if (getUser(viewer).wantsPresence(id)) sendFrame(getClient(viewer), frame);
 			}
 		}
-		if (broadcastBlocked && type.equals("MESSAGE")) {
-			source.sendMessage(sender, "Your message could not be delivered to some recipients", "SERVER");
+		unlock();
+		frame.release();
+	}
+	
+	/**
+	 * Send one digest packet to every online user, filtered by their blocked and watch lists
+	 * @param joined: users that logged in during the digest window
+	 * @param left: users that logged out during the digest window
+	 */
+	public void sendPresenceDigest(int[] joined, int[] left) {
+		lock();
+		debug.print("Sending presence digest");
+		
+		// Most users get the same digest, so each distinct digest is only encoded once
+		Map<String, Frame> frames = new HashMap<>();
+		List<ClientHandler> handlers;
+		synchronized (clients) {
+			handlers = new ArrayList<>(clients);
+		}
+		for (ClientHandler client : handlers) {
+			if (!client.isAlive() || client.getUserId() == -1) continue;
+			String digest = PresenceDigest.format(this, getUser(client.getUserId()), joined, left);
+			if (digest == null) continue;
+			Frame frame = frames.computeIfAbsent(digest, d -> {
+				Packet packet = new Packet("PRESENCE", d);
+				packet.setSender("SERVER");
+				return Frame.of(packet);
+			});
+			sendFrame(client, frame);
 		}
 		unlock();
+		for (Frame frame : frames.values()) frame.release();
 	}
 	
 	/**
-	 * Get the port of the welcome socket of a user
-	 * @param username: target user for port no to be retrieved from
-	 * @return the port number
+	 * Write a shared frame to every user with their bit set in a mask
+	 * Lagging sessions are skipped, broadcasts are the first thing they go without
+	 * @param mask: bitmap of recipients indexed by user ID
 	 */
-	public int getPort (String username) {
-		for (ClientHandler c : clients) {
-			if (username.equals(c.getUsername())) {
-				return c.getWelcomePort();
+	private void sendFrame(long[] mask, Frame frame) {
+		for (int i = 0; i < mask.length; i++) {
+			for (long word = mask[i]; word != 0; word &= word - 1) {
+				ClientHandler client = getClient((i << 6) + Long.numberOfTrailingZeros(word));
+				if (client == null) continue;
+				try {
+					client.sendBulk(frame);
+				} catch (IOException e) {
+					debug.print(e.getMessage());
+				}
 			}
 		}
-		return -1;
+	}
+	
+	/**
+	 * Write a shared frame to one client of a fan-out
+	 */
+	private void sendFrame(ClientHandler client, Frame frame) {
+		if (client == null) return;
+		try {
+			client.send(frame);
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Coalesce login/logout notifications into one digest per window
+	 * @param window: length of the window in seconds, 0 to send every event straight away
+	 */
+	public void enablePresenceDigest(long window) {
+		if (window <= 0) return;
+		presence = new PresenceDigest(this, window);
+		presence.start();
+	}
+	
+	/**
+	 * Ping quiet clients, close connections that stop answering and log out idle users
+	 * @param interval: seconds of silence before a client is pinged
+	 */
+	public void enableHeartbeat(long interval) {
+		heartbeat = new Heartbeat(this, Math.max(1, interval), timeout);
+		heartbeat.start();
+	}
+	
+	/**
+	 * Keep user state on disk and restore it from the last run
+	 * @param interval: seconds between snapshots, 0 to only keep state in memory
+	 */
+	public void enableStateStore(long interval) throws IOException {
+		if (interval <= 0) return;
+		store = new StateStore(this, new File("state"), interval);
+		store.restore(users);
+		indexBlocks();
+		for (User u : users) u.setJournal(store);
+		store.start();
+	}
+	
+	/**
+	 * Expire offline messages that have waited longer than their type's time to live
+	 * Messages restored from the state store are checked straight away, so this is called after it.
+	 * @param ttls: seconds each packet type is kept for, 0 or missing to keep it until delivered
+	 */
+	public void enableExpiry(Map<String, Long> ttls) {
+		compactor = new Compactor(this, ttls);
+		compactor.compact(System.currentTimeMillis());
+		compactor.start();
+	}
+	
+	/**
+	 * Keep the messages sent between users so they can be fetched again
+	 */
+	public void enableHistory() {
+		history = new HistoryStore(new File("history"));
+	}
+	
+	/**
+	 * Get the message history store
+	 * @return the store, null if history is not enabled
+	 */
+	public HistoryStore getHistory() {
+		return history;
+	}
+	
+	/**
+	 * Index the messages users send and receive so they can be searched
+	 */
+	public void enableSearch() throws IOException {
+		search = new SearchIndex(this, new File("search"));
+		search.start();
+	}
+	
+	/**
+	 * Get the search index
+	 * @return the index, null if search is not enabled
+	 */
+	public SearchIndex getSearch() {
+		return search;
+	}
+	
+	/**
+	 * Get all registered users
+	 */
+	public List<User> getUsers() {
+		return users;
+	}
+	
+	/**
+	 * Get the port of the welcome socket of a user
+	 * @param id: ID of the target user for port no to be retrieved from
+	 * @return the port number
+	 */
+	public int getPort (int id) {
+		ClientHandler c = getClient(id);
+		return (c == null) ? -1 : c.getWelcomePort();
+	}
+	
+	/**
+	 * Get the address a user is connected from, for other users to make private connections to
+	 * @param id: ID of the user
+	 * @return the address, null if the user is not logged in
+	 */
+	public InetAddress getAddress(int id) {
+		ClientHandler c = getClient(id);
+		return (c == null) ? null : c.getAddress();
+	}
+	
+	/**
+	 * Encrypt every client connection accepted from now on
+	 * @param tls: settings with the server's certificate and key
+	 */
+	public void enableTls(Tls tls) {
+		this.tls = tls;
+	}
+	
+	/**
+	 * Get the relay for private connections between users that can't reach each other
+	 */
+	public Relay getRelay() {
+		return relay;
 	}
 	
 	/**
@@ -164,28 +510,123 @@ public class Server {
 				if (usernames.contains(contents[0])) {
 					System.out.println("Error: duplicate username " + contents[0] + " in credentials file");
 				} else {
+					User u = new User(users.size(), contents[0], contents[1]);
 					usernames.add(contents[0]);
-					users.add(new User(contents[0], contents[1]));
+					users.add(u);
+					userMap.put(contents[0], u);
 				}
 			}
 			br.close();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		
+		// Usernames and packet types are decoded from requests without allocating
+		List<String> known = new ArrayList<>(usernames);
+		known.addAll(Arrays.asList(Packet.TYPES));
+		known.add(Compression.METHOD);
+		names = new StringTable(known);
+	}
+	
+	/**
+	 * Get the number of requests waiting to be handled
+	 * Used to tell if the server is overloaded. This is the number of threads waiting for the
+	 * synchronization lock, or the longest request queue of any shard when the server is sharded.
+	 */
+	public int getQueueLength() {
+		if (shards == null) return syncLock.getQueueLength();
+		int longest = 0;
+		for (Shard shard : shards) longest = Math.max(longest, shard.getQueueLength());
+		return longest;
+	}
+	
+	/**
+	 * Check if clients may turn on compression at login
+	 */
+	public boolean allowsCompression() {
+		return compression;
+	}
+	
+	/**
+	 * Check if offline messages are replayed in batches rather than one packet each
+	 */
+	public boolean batchesOffline() {
+		return batchOffline;
+	}
+	
+	/**
+	 * Choose whether offline messages are replayed in batches, e.g. off for clients that predate them
+	 */
+	public void setOfflineBatching(boolean on) {
+		this.batchOffline = on;
+	}
+	
+	/**
+	 * Get the table of known strings used to decode requests
+	 */
+	public StringTable getNames() {
+		return names;
+	}
+	
+	/**
+	 * Get the server counters
+	 */
+	public Metrics getMetrics() {
+		return metrics;
 	}
 	
 	/**
-	 * Synchronization lock
+	 * Get the rate limiter for incoming commands
+	 */
+	public RateLimiter getLimiter() {
+		return limiter;
+	}
+	
+	/**
+	 * Synchronization lock, not used when the server is sharded
 	 */
 	public void lock() {
-		syncLock.lock();
+		if (shards == null) syncLock.lock();
 	}
 	
 	/**
 	 * Synchronization unlock
 	 */
 	public void unlock() {
-		syncLock.unlock();
+		if (shards == null) syncLock.unlock();
+	}
+	
+	/**
+	 * Split the users between event loop threads instead of sharing the server lock
+	 * @param count: number of shards, usually one per core. 0 keeps the single lock.
+	 */
+	public void enableShards(int count) {
+		if (count <= 0) return;
+		Shard[] created = new Shard[count];
+		for (int i = 0; i < count; i++) created[i] = new Shard(this, i, count);
+		Shard.link(created);
+		for (Shard shard : created) shard.start();
+		shards = created;
+	}
+	
+	/**
+	 * Get the shard that owns a user
+	 * @param id: ID of the user, requests without a user go to the first shard
+	 * @return the shard, null if the server isn't sharded
+	 */
+	public Shard getShard(int id) {
+		if (shards == null) return null;
+		return shards[Math.max(id, 0) % shards.length];
+	}
+	
+	/**
+	 * Run a task on the shard that owns a user, or straight away if the server isn't sharded
+	 * @param id: ID of the user whose state the task uses
+	 * @param task: work to be done
+	 */
+	public void post(int id, Runnable task) {
+		if (shards == null) task.run();
+		else Shard.post(getShard(id), task);
 	}
 	
 	/**
@@ -193,7 +634,26 @@ public class Server {
 	 * @param s: new client to be added
 	 */
 	public void addClient(ClientHandler s) {
-		clients.add(s);
+		synchronized (clients) {
+			clients.add(s);
+		}
+	}
+	
+	/**
+	 * Remove a client thread that has finished, so the list only holds live connections
+	 * @param s: client to be removed
+	 */
+	public void removeClient(ClientHandler s) {
+		synchronized (clients) {
+			clients.remove(s);
+		}
+	}
+	
+	/**
+	 * Get the threads of every connected client, synchronize on the list to go through it
+	 */
+	public List<ClientHandler> getClients() {
+		return clients;
 	}
 	
 	/**
@@ -202,10 +662,50 @@ public class Server {
 	 * @return the active thread of the user
 	 */
 	public ClientHandler getClient(String username) {
-		for (ClientHandler c : clients) {
-			if (username.equals(c.getUsername())) return c;
-		}
-		return null;
+		return getClient(getId(username));
+	}
+	
+	/**
+	 * Get the thread for a certain user by ID
+	 * @param id: ID of the desired user
+	 * @return the active thread of the user, null if they are not logged in
+	 */
+	public ClientHandler getClient(int id) {
+		if (id < 0 || id >= sessions.length()) return null;
+		return sessions.get(id);
+	}
+	
+	/**
+	 * Register the thread of a user that has just logged in
+	 * @param id: ID of the user that logged in
+	 * @param client: thread handling the user
+	 */
+	public void addSession(int id, ClientHandler client) {
+		sessions.set(id, client);
+		setOnline(id, true);
+		metrics.gauge("buffered." + getUser(id).getUsername(), client::getBuffered);
+	}
+	
+	/**
+	 * Remove the thread of a user that has logged out
+	 * @param id: ID of the user that logged out, -1 does nothing
+	 */
+	public void removeSession(int id) {
+		if (id == -1) return;
+		sessions.set(id, null);
+		setOnline(id, false);
+		metrics.removeGauge("buffered." + getUser(id).getUsername());
+	}
+	
+	/**
+	 * Get a channel by name
+	 * @param name: name of the channel
+	 * @param create: true to create the channel if it doesn't exist yet
+	 * @return the channel, null if it doesn't exist and create is false
+	 */
+	public Channel getChannel(String name, boolean create) {
+		if (create) return channels.computeIfAbsent(name, Channel::new);
+		return channels.get(name);
 	}
 	
 	/**
@@ -214,41 +714,203 @@ public class Server {
 	public boolean getDebug() {
 		return debug.on;
 	}
-		 
-	public static void main(String[] args) throws IOException {
-		
-		if (args.length == 4 && args[3].equals("-d")) debug.set(true);
-		
-		int serverPort = Integer.parseInt(args[0]);
-		long block_duration = Integer.parseInt(args[1]);
-		long timeout = Integer.parseInt(args[2]);
-		startTime = LocalDateTime.now();
+	
+	/**
+	 * Open the welcome socket, making sure this is the only server on the port
+	 * The running server keeps its pid in a locked server.<port>.pid file. Taking over binds
+	 * the port alongside it with SO_REUSEPORT, asks it to drain (SIGTERM), then waits for its
+	 * lock so its state is on disk before this server restores it. Clients connecting in the
+	 * meantime wait in this server's accept backlog instead of being refused.
+	 * @param port: port for the welcome socket
+	 * @param takeover: true to replace a running server instead of failing
+	 */
+	public void listen(int port, boolean takeover) throws IOException {
+		pidFile = FileChannel.open(new File("server." + port + ".pid").toPath(), 
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileLock lock = pidFile.tryLock();
+		if (lock == null && !takeover) {
+			throw new IOException("A server is already running on port " + port + ", use -takeover to replace it");
+		}
 		
-		Server server = new Server(block_duration, timeout);	
+		welcomeSocket = new ServerSocket();
+		boolean reusePort = welcomeSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		if (reusePort) welcomeSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		if (lock != null || reusePort) welcomeSocket.bind(new InetSocketAddress(port));
 		
-		@SuppressWarnings("resource")
-		ServerSocket welcomeSocket = new ServerSocket(serverPort);
-		debug.print("Server is ready at port: " + serverPort);
+		if (lock == null) {
+			ByteBuffer buffer = ByteBuffer.allocate(32);
+			pidFile.read(buffer, 0);
+			long pid = Long.parseLong(new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII).trim());
+			debug.print("Taking over port " + port + " from server " + pid);
+			ProcessHandle.of(pid).ifPresent(ProcessHandle::destroy);
+			lock = pidFile.lock();
+		}
+		// Without SO_REUSEPORT the port is only free once the old server has let go of it
+		if (!welcomeSocket.isBound()) welcomeSocket.bind(new InetSocketAddress(port));
 		
-		while (true) {
+		pidFile.truncate(0);
+		pidFile.write(ByteBuffer.wrap(Long.toString(ProcessHandle.current().pid()).getBytes(StandardCharsets.US_ASCII)), 0);
+		pidFile.force(false);
+		relay = new Relay(this, welcomeSocket.getInetAddress());
+		relay.start();
+		debug.print("Server is ready at port: " + port);
+	}
+	
+	/**
+	 * Accept clients until the server starts draining
+	 */
+	public void serve() throws IOException {
+		while (!draining) {
 			Socket s = null;
 			try {	
 				s = welcomeSocket.accept();
 				debug.print("A new client is connected " + s);
 				
-				ObjectInputStream dis = new ObjectInputStream(s.getInputStream());
-				ObjectOutputStream dos = new ObjectOutputStream(s.getOutputStream());
+				DataInputStream dis;
+				DataOutputStream dos;
+				if (tls == null) {
+					dis = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+					dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+				} else {
+					// The handshake happens on the client's own thread when it first reads
+					// A flush of up to a full record is encrypted as one record
+					TlsConnection connection = tls.accept(s);
+					dis = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+					dos = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), 16 * 1024));
+				}
 				
 				debug.print("Assigning new thread for this client");
 				
-				ClientHandler t = new ClientHandler(server, s, dis, dos);
-				server.clients.add(t);
+				ClientHandler t = new ClientHandler(this, s, dis, dos);
+				addClient(t);
 				t.start();		
 			} catch (Exception e) {
-				s.close();
+				if (s != null) s.close();
+			}
+		}
+	}
+	
+	/**
+	 * Shut the server down without losing anything
+	 * Stops accepting, tells every client to reconnect, writes out what is queued for them
+	 * and closes their connections (which requeues unacknowledged messages), then snapshots
+	 * the user state so the next server starts with the offline messages.
+	 */
+	public void drain() {
+		if (draining) return;
+		draining = true;
+		debug.print("Draining");
+		try {
+			welcomeSocket.close();
+		} catch (IOException e) {
+			debug.print(e.getMessage());
+		}
+		if (relay != null) relay.close();
+		
+		List<ClientHandler> handlers;
+		synchronized (clients) {
+			handlers = new ArrayList<>(clients);
+		}
+		Packet notice = new Packet("SERVER", "Server is restarting, please reconnect");
+		for (ClientHandler client : handlers) {
+			try {
+				if (client.isAlive()) client.send(notice);
+			} catch (IOException e) {
+				debug.print(e.getMessage());
+			}
+		}
+		// Outboxes drain in parallel, so this waits about as long as the slowest client
+		for (ClientHandler client : handlers) client.closeConnection(1000);
+		for (ClientHandler client : handlers) {
+			try {
+				client.join(1000);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		
+		try {
+			if (store != null) store.snapshot();
+			if (history != null) history.close();
+			if (search != null) search.close();
+		} catch (IOException e) {
+			debug.print("Could not save state: " + e.getMessage());
+		}
+		debug.print("Drained");
+	}
+		 
+	public static void main(String[] args) throws IOException {
+		
+		int serverPort = Integer.parseInt(args[0]);
+		long block_duration = Integer.parseInt(args[1]);
+		long timeout = Integer.parseInt(args[2]);
+		startTime = LocalDateTime.now();
+		
+		// Required arguments: <port> <block duration seconds> <idle timeout seconds, 0 to never log out idle users>
+		// Optional flags after the required arguments
+		// -d: print debugging information
+		// -digest <seconds>: send login/logout alerts as one digest per window
+		// -state <seconds>: keep user state in the state directory, snapshotting every interval
+		// -history: keep the messages between users in the history directory
+		// -search: index the messages users send and receive in the search directory
+		// -stats <seconds>: print the server counters every interval
+		// -nocompress: don't compress packets even if the client asks for it
+		// -nobatch: replay offline messages one packet each instead of in batches
+		// -takeover: replace the server running on the same port without refusing connections
+		// -shards <count>: give each of count event loop threads its own share of the users
+		// -heartbeat <seconds>: ping clients that have been quiet this long, default 5
+		// -ttl <TYPE=seconds,...>: how long offline messages of each type are kept, 0 for ever
+		//     (MESSAGE and CHANNEL are the types that are queued, defaults 30 days and 7 days)
+		// -tls <keystore> <password>: only take TLS connections, using the server's own key in a PKCS12 keystore
+		long digestWindow = 0;
+		long snapshotInterval = 0;
+		boolean keepHistory = false;
+		boolean indexSearch = false;
+		long statsInterval = 0;
+		boolean allowCompression = true;
+		boolean batchOffline = true;
+		boolean takeover = false;
+		int shardCount = 0;
+		long heartbeatInterval = 5;
+		Map<String, Long> ttls = Compactor.DEFAULT_TTLS;
+		Tls tls = null;
+		for (int i = 3; i < args.length; i++) {
+			if (args[i].equals("-d")) debug.set(true);
+			else if (args[i].equals("-digest")) digestWindow = Long.parseLong(args[++i]);
+			else if (args[i].equals("-state")) snapshotInterval = Long.parseLong(args[++i]);
+			else if (args[i].equals("-history")) keepHistory = true;
+			else if (args[i].equals("-search")) indexSearch = true;
+			else if (args[i].equals("-stats")) statsInterval = Long.parseLong(args[++i]);
+			else if (args[i].equals("-nocompress")) allowCompression = false;
+			else if (args[i].equals("-nobatch")) batchOffline = false;
+			else if (args[i].equals("-takeover")) takeover = true;
+			else if (args[i].equals("-shards")) shardCount = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-heartbeat")) heartbeatInterval = Long.parseLong(args[++i]);
+			else if (args[i].equals("-ttl")) ttls = Compactor.parse(args[++i]);
+			else if (args[i].equals("-tls")) {
+				tls = new Tls(new File(args[i + 1]), args[i + 2], null, null);
+				i += 2;
 			}
 		}
 		
+		Server server = new Server(block_duration, timeout);	
+		server.listen(serverPort, takeover);
+		server.enablePresenceDigest(digestWindow);
+		server.enableStateStore(snapshotInterval);
+		server.enableExpiry(ttls);
+		if (keepHistory) server.enableHistory();
+		if (indexSearch) server.enableSearch();
+		server.getMetrics().startReporting(statsInterval);
+		server.compression = allowCompression;
+		server.setOfflineBatching(batchOffline);
+		server.enableShards(shardCount);
+		server.enableHeartbeat(heartbeatInterval);
+		if (tls != null) server.enableTls(tls);
+		
+		// SIGTERM and Ctrl-C drain the server instead of dropping every client
+		Runtime.getRuntime().addShutdownHook(new Thread(server::drain));
+		server.serve();
+		
 	}
 
 }
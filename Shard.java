@@ -0,0 +1,188 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+public class Shard extends Thread {
+	
+	private static final int QUEUE_SIZE = 1024;
+	// Tasks run from one queue before moving on to the next, so no queue starves the others
+	private static final int BATCH = 64;
+	
+	private int index;
+	private Shard[] shards;
+	private long[] partition;
+	private Queue<Runnable> requests;
+	// Size of requests, which a ConcurrentLinkedQueue can only count by walking it
+	private AtomicInteger queued;
+	private SpscQueue<Runnable>[] inbox;
+	private ArrayDeque<Runnable>[] overflow;
+	private volatile boolean sleeping;
+	private static Debug debug = new Debug();
+	
+	/**
+	 * Event loop that owns every user whose ID is index modulo the number of shards
+	 * Requests about those users run on this thread one at a time, so their state, sessions
+	 * and offline queues are only touched by it. Work for another shard's users is passed
+	 * over a single-producer/single-consumer queue for each pair of shards.
+	 * @param server: server the users belong to
+	 * @param index: number of this shard
+	 * @param count: number of shards
+	 */
+	public Shard(Server server, int index, int count) {
+		super("shard-" + index);
+		this.index = index;
+		this.requests = new ConcurrentLinkedQueue<>();
+		this.queued = new AtomicInteger();
+		this.partition = new long[(server.getUsers().size() + 63) >> 6];
+		for (int id = index; id < server.getUsers().size(); id += count) partition[id >> 6] |= 1L << id;
+		this.sleeping = false;
+		setDaemon(true);
+		debug.set(server.getDebug());
+	}
+	
+	/**
+	 * Make the queues between every pair of shards, before they are started
+	 * @param shards: every shard of the server
+	 */
+	// Arrays of a generic type can only be made as wildcards and cast
+	@SuppressWarnings("unchecked")
+	public static void link(Shard[] shards) {
+		for (Shard shard : shards) {
+			shard.shards = shards;
+			shard.inbox = (SpscQueue<Runnable>[])new SpscQueue<?>[shards.length];
+			shard.overflow = (ArrayDeque<Runnable>[])new ArrayDeque<?>[shards.length];
+			for (int i = 0; i < shards.length; i++) {
+				if (i != shard.index) shard.inbox[i] = new SpscQueue<>(QUEUE_SIZE);
+				shard.overflow[i] = new ArrayDeque<>();
+			}
+		}
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			boolean idle = true;
+			Runnable task;
+			for (int n = 0; n < BATCH && (task = requests.poll()) != null; n++) {
+				queued.decrementAndGet();
+				execute(task);
+				idle = false;
+			}
+			for (SpscQueue<Runnable> queue : inbox) {
+				if (queue == null) continue;
+				for (int n = 0; n < BATCH && (task = queue.poll()) != null; n++) {
+					execute(task);
+					idle = false;
+				}
+			}
+			if (!flushOverflow()) idle = false;
+			
+			if (idle) {
+				// Producers check the flag after adding a task, the park is capped in case a wake up is missed
+				sleeping = true;
+				if (isEmpty()) LockSupport.parkNanos(this, 1000000);
+				sleeping = false;
+			}
+		}
+	}
+	
+	private void execute(Runnable task) {
+		try {
+			task.run();
+		} catch (Exception e) {
+			debug.print(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Move tasks that didn't fit into another shard's queue earlier
+	 * @return true if nothing is left waiting
+	 */
+	private boolean flushOverflow() {
+		boolean empty = true;
+		for (int i = 0; i < overflow.length; i++) {
+			ArrayDeque<Runnable> waiting = overflow[i];
+			if (waiting.isEmpty()) continue;
+			SpscQueue<Runnable> queue = shards[i].inbox[index];
+			while (!waiting.isEmpty() && queue.offer(waiting.peek())) waiting.poll();
+			shards[i].wake();
+			if (!waiting.isEmpty()) empty = false;
+		}
+		return empty;
+	}
+	
+	private boolean isEmpty() {
+		if (!requests.isEmpty()) return false;
+		for (SpscQueue<Runnable> queue : inbox) {
+			if (queue != null && !queue.isEmpty()) return false;
+		}
+		return true;
+	}
+	
+	private void wake() {
+		if (sleeping) LockSupport.unpark(this);
+	}
+	
+	/**
+	 * Run a task on a shard, from any thread
+	 * A shard passes the task over its own queue to the target, or runs it straight away if the
+	 * target is itself. Other threads (client handlers) go through the target's request queue.
+	 * @param target: shard that owns the state the task uses
+	 * @param task: work to be done
+	 */
+	public static void post(Shard target, Runnable task) {
+		Thread current = Thread.currentThread();
+		if (current == target) {
+			target.execute(task);
+		} else if (current instanceof Shard) {
+			Shard from = (Shard)current;
+			// Once something is waiting, later tasks wait behind it so they stay in order
+			ArrayDeque<Runnable> waiting = from.overflow[target.index];
+			if (!waiting.isEmpty() || !target.inbox[from.index].offer(task)) waiting.add(task);
+			target.wake();
+		} else {
+			target.queued.incrementAndGet();
+			target.requests.offer(task);
+			target.wake();
+		}
+	}
+	
+	/**
+	 * Run a task on this shard and wait for its result
+	 * @param task: work to be done
+	 * @return the result of the task
+	 * @throws Exception anything thrown by the task
+	 */
+	public <T> T call(Callable<T> task) throws Exception {
+		if (Thread.currentThread() == this) return task.call();
+		FutureTask<T> future = new FutureTask<>(task);
+		post(this, future);
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Get the number of requests from client handlers waiting for this shard
+	 * Used like the length of the lock queue to tell if the server is overloaded
+	 */
+	public int getQueueLength() {
+		return queued.get();
+	}
+	
+	/**
+	 * Get the bitmap of the user IDs this shard owns
+	 */
+	public long[] getPartition() {
+		return partition;
+	}
+	
+}
@@ -0,0 +1,261 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Soak {
+	
+	// How each churn session ends
+	private static final String[] ENDINGS = {"logout", "exit", "timeout", "force close"};
+	// Seconds of inactivity before the soak server logs a user out, kept short so timeouts come often
+	private static final long IDLE_TIMEOUT = 2;
+	private static final int PORT = 4620;
+	
+	private static volatile boolean running = true;
+	private static AtomicLong sessions = new AtomicLong();
+	private static AtomicLong[] endings = new AtomicLong[ENDINGS.length];
+	
+	/**
+	 * Run a server for a long time against clients that keep logging in and out, and fail
+	 * if the heap, the thread count or the server's list of clients keeps growing
+	 * Every account in credentials.txt gets a thread that logs in, sends a few messages and
+	 * then logs out, exits, idles until it times out or drops the socket without a word, over
+	 * and over. The server runs in this process on port 4620 with short TTLs, so queued
+	 * messages expire and whatever the heap still holds at the end was leaked.
+	 * e.g. java Soak -minutes 120 -heap 16 -threads 10
+	 * -minutes: how long to run for, default 10
+	 * -heap: MB the live heap may grow by after warm-up, default 16
+	 * -threads: threads the process may grow by after warm-up, default 10
+	 */
+	public static void main(String[] args) throws Exception {
+		double minutes = 10;
+		long heapLimit = 16L << 20;
+		int threadLimit = 10;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-minutes")) minutes = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-heap")) heapLimit = Long.parseLong(args[++i]) << 20;
+			else if (args[i].equals("-threads")) threadLimit = Integer.parseInt(args[++i]);
+			else {
+				System.out.println("Usage: java Soak [-minutes m] [-heap MB] [-threads n]");
+				return;
+			}
+		}
+		for (int i = 0; i < endings.length; i++) endings[i] = new AtomicLong();
+		
+		Server server = new Server(10, IDLE_TIMEOUT);
+		server.listen(PORT, false);
+		server.getLimiter().setPerUserLimits(false);
+		server.enableHeartbeat(1);
+		server.enableExpiry(Compactor.parse("MESSAGE=5,CHANNEL=5"));
+		Thread serving = new Thread(() -> {
+			try {
+				server.serve();
+			} catch (IOException e) {
+				// Closed by drain
+			}
+		});
+		serving.setDaemon(true);
+		serving.start();
+		
+		List<String[]> accounts = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader("credentials.txt"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] account = line.trim().split(" ");
+				if (account.length == 2) accounts.add(account);
+			}
+		}
+		List<Thread> churners = new ArrayList<>();
+		for (int i = 0; i < accounts.size(); i++) {
+			Thread churner = new Churner(accounts, i, new Random(i));
+			churner.start();
+			churners.add(churner);
+		}
+		
+		// Sample about 40 times over the run, the first quarter is warm-up and sets the baseline
+		long duration = (long)(minutes * 60 * 1000);
+		long interval = Math.max(2000, duration / 40);
+		long start = System.currentTimeMillis();
+		List<Sample> samples = new ArrayList<>();
+		Sample baseline = null;
+		System.out.printf("%8s %10s %12s %8s %8s %8s %8s %10s%n", "seconds", "sessions", "heap KB", "threads", "clients", "gcs", "gc ms", "B/session");
+		while (System.currentTimeMillis() - start < duration) {
+			Thread.sleep(interval);
+			Sample sample = new Sample(server, (System.currentTimeMillis() - start) / 1000);
+			samples.add(sample);
+			if (baseline == null && System.currentTimeMillis() - start >= duration / 4) baseline = sample;
+			System.out.printf("%8d %10d %12d %8d %8d %8d %8d %10s%n", sample.seconds, sample.sessions, sample.heap >> 10,
+					sample.threads, sample.clients, sample.gcs, sample.gcMillis, (baseline == null) ? "-" : sample.perSession(baseline));
+		}
+		
+		running = false;
+		for (Thread churner : churners) churner.join(10000);
+		if (baseline == null || baseline == samples.get(samples.size() - 1)) {
+			System.out.println("Too short to compare against a baseline, run for longer");
+			server.drain();
+			return;
+		}
+		
+		// The lowest of the last three samples, so a sample taken mid-session doesn't count as growth
+		Sample end = samples.get(samples.size() - 1);
+		for (Sample s : samples.subList(Math.max(0, samples.size() - 3), samples.size())) {
+			if (s.heap < end.heap) end = s;
+		}
+		List<String> failures = new ArrayList<>();
+		if (end.heap - baseline.heap > heapLimit) {
+			failures.add("heap grew by " + ((end.heap - baseline.heap) >> 10) + " KB, " + end.perSession(baseline) + " bytes per session");
+		}
+		if (end.threads - baseline.threads > threadLimit) {
+			failures.add("threads grew from " + baseline.threads + " to " + end.threads);
+		}
+		// At most one connection per account is open at a time, plus one that is still closing
+		if (end.clients > 2 * accounts.size()) {
+			failures.add("server holds " + end.clients + " client threads for " + accounts.size() + " accounts");
+		}
+		
+		System.out.println();
+		for (int i = 0; i < ENDINGS.length; i++) System.out.println(ENDINGS[i] + ": " + endings[i].get());
+		System.out.println(server.getMetrics().report());
+		server.drain();
+		if (failures.isEmpty()) {
+			System.out.println("PASS after " + end.sessions + " sessions");
+			return;
+		}
+		for (String failure : failures) System.out.println("FAIL " + failure);
+		System.exit(1);
+	}
+	
+	/**
+	 * Thread that keeps logging one account in and ending the session in a random way
+	 */
+	private static class Churner extends Thread {
+		
+		private List<String[]> accounts;
+		private String[] account;
+		private Random random;
+		
+		/**
+		 * @param accounts: every account, messages go to any of them
+		 * @param index: account this thread logs in as
+		 * @param random: picks the recipients and the endings
+		 */
+		public Churner(List<String[]> accounts, int index, Random random) {
+			super("churn-" + accounts.get(index)[0]);
+			this.accounts = accounts;
+			this.account = accounts.get(index);
+			this.random = random;
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					session();
+				} catch (IOException e) {
+					// The server dropped this session, start another
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		
+		private void session() throws IOException, InterruptedException {
+			CountDownLatch answered = new CountDownLatch(1);
+			boolean[] refused = new boolean[1];
+			Client client = new Client(InetAddress.getLoopbackAddress(), PORT, new ClientListener() {
+				@Override
+				public void loggedIn() {
+					answered.countDown();
+				}
+				
+				@Override
+				public void loginFailed(String status) {
+					// ONLINE until the server notices the last force close
+					refused[0] = true;
+					answered.countDown();
+				}
+			}, random.nextBoolean());
+			client.setDirect(false);
+			try {
+				client.connect();
+				client.login(account[0], account[1]);
+				if (!answered.await(5, TimeUnit.SECONDS) || refused[0]) {
+					Thread.sleep(500);
+					return;
+				}
+				sessions.incrementAndGet();
+				for (int i = random.nextInt(20); i > 0; i--) {
+					client.message(accounts.get(random.nextInt(accounts.size()))[0], "soak message " + random.nextLong());
+				}
+				if (random.nextInt(4) == 0) client.broadcast("soak broadcast " + random.nextLong());
+				Thread.sleep(random.nextInt(200));
+				
+				int ending = random.nextInt(ENDINGS.length);
+				endings[ending].incrementAndGet();
+				switch (ENDINGS[ending]) {
+				case "logout":
+					client.logout();
+					Thread.sleep(50);
+					break;
+				case "exit":
+					client.exit();
+					client.awaitClose(2000);
+					break;
+				case "timeout":
+					Thread.sleep(IDLE_TIMEOUT * 1000 + 1500);
+					break;
+				default:
+					// Socket closed without logging out
+					break;
+				}
+			} finally {
+				client.close();
+			}
+		}
+	
+	}
+	
+	/**
+	 * What the process holds at one point in the run, measured after a full collection
+	 */
+	private static class Sample {
+		
+		private long seconds;
+		private long sessions;
+		private long heap;
+		private int threads;
+		private int clients;
+		private long gcs;
+		private long gcMillis;
+		
+		public Sample(Server server, long seconds) {
+			System.gc();
+			System.gc();
+			this.seconds = seconds;
+			this.sessions = Soak.sessions.get();
+			this.heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			this.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			synchronized (server.getClients()) {
+				this.clients = server.getClients().size();
+			}
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				gcs += Math.max(0, gc.getCollectionCount());
+				gcMillis += Math.max(0, gc.getCollectionTime());
+			}
+		}
+		
+		/**
+		 * Heap retained per session since an earlier sample, close to 0 without a leak
+		 */
+		public long perSession(Sample since) {
+			long count = sessions - since.sessions;
+			return (count <= 0) ? 0 : (heap - since.heap) / count;
+		}
+	
+	}
+	
+}
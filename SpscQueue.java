@@ -0,0 +1,67 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SpscQueue<E> {
+	
+	private final Object[] buffer;
+	private final int mask;
+	private final AtomicLong head;
+	private final AtomicLong tail;
+	// Each side keeps its own copy of the other side's index so it rarely has to read the shared one
+	private long headCache;
+	private long tailCache;
+	
+	/**
+	 * Bounded lock-free queue for exactly one producer thread and one consumer thread
+	 * The producer only writes the tail and the consumer only writes the head, so neither
+	 * needs a lock or a compare-and-set.
+	 * @param capacity: number of slots, rounded up to a power of two
+	 */
+	public SpscQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.buffer = new Object[size];
+		this.mask = size - 1;
+		this.head = new AtomicLong();
+		this.tail = new AtomicLong();
+	}
+	
+	/**
+	 * Add an element, only called by the producer
+	 * @return false if the queue is full
+	 */
+	public boolean offer(E e) {
+		long t = tail.get();
+		if (t - headCache >= buffer.length) {
+			headCache = head.get();
+			if (t - headCache >= buffer.length) return false;
+		}
+		buffer[(int)t & mask] = e;
+		tail.lazySet(t + 1);
+		return true;
+	}
+	
+	/**
+	 * Take the oldest element, only called by the consumer
+	 * @return the element, null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long h = head.get();
+		if (h >= tailCache) {
+			tailCache = tail.get();
+			if (h >= tailCache) return null;
+		}
+		int i = (int)h & mask;
+		E e = (E)buffer[i];
+		buffer[i] = null;
+		head.lazySet(h + 1);
+		return e;
+	}
+	
+	/**
+	 * Check if the queue is empty, from either side
+	 */
+	public boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+	
+}
@@ -0,0 +1,257 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+
+public class StateStore extends Thread {
+	
+	private Server server;
+	private File dir;
+	private long interval;
+	private DataOutputStream wal;
+	private FileOutputStream walFile;
+	private int segment;
+	private Debug debug = new Debug();
+	
+	/**
+	 * Keeps the state of every user on disk so a restarted server can pick up where it left off
+	 * Every change to a user is appended to a write-ahead log. A snapshot of all users is
+	 * written every interval, after which the older log segments are removed.
+	 * @param server: server the users belong to
+	 * @param dir: directory for the snapshot and log segments
+	 * @param interval: seconds between snapshots
+	 */
+	public StateStore(Server server, File dir, long interval) {
+		this.server = server;
+		this.dir = dir;
+		this.interval = interval;
+		this.segment = 0;
+		debug.set(server.getDebug());
+		setDaemon(true);
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(interval * 1000);
+				snapshot();
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				debug.print("Snapshot failed: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Load the latest snapshot and replay the log segments written after it
+	 * Must be called before any clients are accepted
+	 * @param users: users generated from credentials.txt
+	 */
+	public void restore(List<User> users) throws IOException {
+		dir.mkdirs();
+		Map<String, User> byName = new HashMap<>();
+		for (User u : users) byName.put(u.getUsername(), u);
+		
+		// Load the snapshot, each user's state is stored with the version it was taken at
+		File snap = new File(dir, "snapshot");
+		if (snap.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snap)))) {
+				in.readInt();
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String name = in.readUTF();
+					byte[] state = new byte[in.readInt()];
+					in.readFully(state);
+					User u = byName.get(name);
+					if (u != null) u.readState(new DataInputStream(new ByteArrayInputStream(state)), server);
+				}
+			}
+		}
+		
+		// Replay the log tail, records already covered by the snapshot are skipped by the version
+		int replayed = 0;
+		for (int n : segments()) {
+			segment = Math.max(segment, n);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(walSegment(n))))) {
+				while (true) {
+					String name = in.readUTF();
+					long version = in.readLong();
+					String op = in.readUTF();
+					LocalDateTime time = readTime(in);
+					String arg = readString(in);
+					Packet packet = op.equals("ENQUEUE") ? readPacket(in) : null;
+					User u = byName.get(name);
+					User target = (arg == null) ? null : byName.get(arg);
+					if (u != null && (arg == null || target != null)) {
+						u.apply(version, op, time, (target == null) ? -1 : target.getId(), packet);
+					}
+					replayed++;
+				}
+			} catch (EOFException e) {
+				// End of the segment, or a record cut off by a crash
+			}
+		}
+		for (User u : users) u.finishRestore();
+		debug.print("Restored state, replayed " + replayed + " log records");
+		
+		openSegment(segment + 1);
+	}
+	
+	/**
+	 * Append a change of a user to the log
+	 * Called by the user while it holds its own lock, so the records of one user are in version order
+	 * @param user: user that changed
+	 * @param version: version of the user after the change
+	 * @param op: LOGIN, LOGOUT, LOCKOUT, UNLOCK, BLOCK, UNBLOCK, ENQUEUE or CLEAR
+	 * @param time: time of the change, null if not needed
+	 * @param arg: user ID for BLOCK/UNBLOCK, -1 otherwise. Stored as a username.
+	 * @param packet: message for ENQUEUE, null otherwise
+	 */
+	public synchronized void append(User user, long version, String op, LocalDateTime time, int arg, Packet packet) {
+		try {
+			wal.writeUTF(user.getUsername());
+			wal.writeLong(version);
+			wal.writeUTF(op);
+			writeTime(wal, time);
+			writeString(wal, (arg == -1) ? null : server.getUser(arg).getUsername());
+			if (packet != null) writePacket(wal, packet);
+			wal.flush();
+		} catch (IOException e) {
+			debug.print("Could not log " + op + " for " + user.getUsername() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Write a snapshot of every user without pausing request handling
+	 * The log is switched to a new segment first, then each user is copied under its own lock
+	 * only. Changes made while the snapshot is written land in the new segment and are skipped
+	 * on replay if the snapshot already has them.
+	 */
+	public void snapshot() throws IOException {
+		int first = rotate();
+		File tmp = new File(dir, "snapshot.tmp");
+		List<User> users = server.getUsers();
+		
+		try (FileOutputStream file = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+			out.writeInt(first);
+			out.writeInt(users.size());
+			for (User u : users) {
+				ByteArrayOutputStream state = new ByteArrayOutputStream();
+				u.writeState(new DataOutputStream(state), server);
+				out.writeUTF(u.getUsername());
+				out.writeInt(state.size());
+				state.writeTo(out);
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(dir, "snapshot").toPath(), 
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		// Everything before the new segment is in the snapshot now
+		for (int n : segments()) {
+			if (n < first) walSegment(n).delete();
+		}
+		debug.print("Snapshot written, log continues at segment " + first);
+	}
+	
+	/**
+	 * Close the current log segment and start the next one
+	 * @return the number of the new segment
+	 */
+	private synchronized int rotate() throws IOException {
+		openSegment(segment + 1);
+		return segment;
+	}
+	
+	private void openSegment(int n) throws IOException {
+		if (wal != null) {
+			wal.flush();
+			walFile.getFD().sync();
+			wal.close();
+		}
+		segment = n;
+		walFile = new FileOutputStream(walSegment(n), true);
+		wal = new DataOutputStream(new BufferedOutputStream(walFile));
+	}
+	
+	private File walSegment(int n) {
+		return new File(dir, "wal." + n);
+	}
+	
+	/**
+	 * Get the numbers of the log segments on disk in order
+	 */
+	private List<Integer> segments() {
+		List<Integer> result = new ArrayList<>();
+		String[] names = dir.list();
+		if (names == null) return result;
+		for (String name : names) {
+			if (name.startsWith("wal.")) result.add(Integer.parseInt(name.substring(4)));
+		}
+		Collections.sort(result);
+		return result;
+	}
+	
+	/**
+	 * Write a string that may be null
+	 * Written with an int length like in frames, as writeUTF fails for messages over 64KB
+	 */
+	public static void writeString(DataOutput out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s == null) return;
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	/**
+	 * Read a string written by writeString
+	 */
+	public static String readString(DataInput in) throws IOException {
+		if (!in.readBoolean()) return null;
+		byte[] bytes = new byte[Packet.checkLength(in.readInt())];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Write a time that may be null
+	 */
+	public static void writeTime(DataOutput out, LocalDateTime time) throws IOException {
+		writeString(out, time == null ? null : time.toString());
+	}
+	
+	/**
+	 * Read a time written by writeTime
+	 */
+	public static LocalDateTime readTime(DataInput in) throws IOException {
+		String s = readString(in);
+		return s == null ? null : LocalDateTime.parse(s);
+	}
+	
+	/**
+	 * Write a queued packet
+	 */
+	public static void writePacket(DataOutput out, Packet p) throws IOException {
+		writeString(out, p.getType());
+		writeString(out, p.getPayload());
+		writeString(out, p.getSender());
+		writeString(out, p.getDest());
+	}
+	
+	/**
+	 * Read a packet written by writePacket
+	 */
+	public static Packet readPacket(DataInput in) throws IOException {
+		Packet p = new Packet(readString(in), readString(in));
+		p.setSender(readString(in));
+		p.setDest(readString(in));
+		return p;
+	}
+
+}
@@ -0,0 +1,71 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+public class StringTable {
+	
+	private byte[][] keys;
+	private String[] values;
+	private int mask;
+	
+	/**
+	 * Fixed table of known strings that can be looked up by their UTF-8 bytes
+	 * Lets decoded usernames and packet types reuse one String instead of allocating a new one.
+	 * The table isn't changed after it is built, so it can be read from any thread.
+	 * @param strings: strings to be held in the table
+	 */
+	public StringTable(Collection<String> strings) {
+		int size = Integer.highestOneBit(Math.max(strings.size(), 8) * 4);
+		this.keys = new byte[size][];
+		this.values = new String[size];
+		this.mask = size - 1;
+		for (String s : strings) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			int i = hash(bytes, 0, bytes.length) & mask;
+			while (keys[i] != null && !values[i].equals(s)) i = (i + 1) & mask;
+			keys[i] = bytes;
+			values[i] = s;
+		}
+	}
+	
+	/**
+	 * Find a known string without allocating
+	 * @param b: buffer holding the UTF-8 bytes
+	 * @param off: start of the string in the buffer
+	 * @param len: length of the string in bytes
+	 * @return the string, null if it isn't in the table
+	 */
+	public String lookup(byte[] b, int off, int len) {
+		int i = hash(b, off, len) & mask;
+		while (keys[i] != null) {
+			if (matches(keys[i], b, off, len)) return values[i];
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+	
+	/**
+	 * Get a string from its bytes, only allocating if it isn't a known string
+	 */
+	public String get(byte[] b, int off, int len) {
+		String s = lookup(b, off, len);
+		return (s != null) ? s : new String(b, off, len, StandardCharsets.UTF_8);
+	}
+	
+	private static int hash(byte[] b, int off, int len) {
+		int h = 0x811c9dc5;
+		for (int i = off; i < off + len; i++) {
+			h ^= b[i];
+			h *= 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+	
+	private static boolean matches(byte[] key, byte[] b, int off, int len) {
+		if (key.length != len) return false;
+		for (int i = 0; i < len; i++) {
+			if (key[i] != b[off + i]) return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,101 @@
+import java.io.*;
+import java.net.Socket;
+import java.security.KeyStore;
+import javax.net.ssl.*;
+
+public class Tls {
+	
+	// Sessions are kept for resuming reconnects without a full handshake
+	private static final int SESSION_CACHE_SIZE = 10000;
+	private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+	
+	private SSLContext context;
+	private boolean hasKey;
+	
+	/**
+	 * TLS settings shared by every connection of a server or client
+	 * Each side has its own key pair, if it takes connections, and a separate store with only
+	 * the certificates it trusts, so no side holds anyone else's private key. Clients trust the
+	 * server's certificate and, for encrypted private connections, the other users' certificates
+	 * (or a CA that signed them all). One context is used for every connection so its session
+	 * cache can resume reconnects with a ticket instead of a full handshake.
+	 * @param keystore: PKCS12 keystore with this side's key and certificate, null to only make connections
+	 * @param keyPassword: password of the keystore and its key
+	 * @param truststore: PKCS12 keystore with only the certificates to trust, null to trust the JDK's default authorities
+	 * @param trustPassword: password of the trust store
+	 */
+	public Tls(File keystore, String keyPassword, File truststore, String trustPassword) throws IOException {
+		try {
+			KeyManager[] keyManagers = null;
+			hasKey = false;
+			if (keystore != null) {
+				KeyStore store = load(keystore, keyPassword);
+				for (String alias : java.util.Collections.list(store.aliases())) {
+					if (store.isKeyEntry(alias)) hasKey = true;
+				}
+				KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+				keys.init(store, keyPassword.toCharArray());
+				keyManagers = keys.getKeyManagers();
+			}
+			TrustManager[] trustManagers = null;
+			if (truststore != null) {
+				KeyStore store = load(truststore, trustPassword);
+				for (String alias : java.util.Collections.list(store.aliases())) {
+					if (store.isKeyEntry(alias)) throw new IOException(truststore + " holds a private key, it should only have certificates");
+				}
+				TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+				trust.init(store);
+				trustManagers = trust.getTrustManagers();
+			}
+			context = SSLContext.getInstance("TLSv1.3");
+			context.init(keyManagers, trustManagers, null);
+			for (SSLSessionContext sessions : new SSLSessionContext[] {context.getServerSessionContext(), context.getClientSessionContext()}) {
+				sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+				sessions.setSessionTimeout(SESSION_TIMEOUT);
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Could not set up TLS: " + e.getMessage(), e);
+		}
+	}
+	
+	private static KeyStore load(File file, String password) throws Exception {
+		try (InputStream in = new FileInputStream(file)) {
+			KeyStore store = KeyStore.getInstance("PKCS12");
+			store.load(in, password.toCharArray());
+			return store;
+		}
+	}
+	
+	/**
+	 * Check if the keystore has a key, so this side can take connections as well as make them
+	 */
+	public boolean hasKey() {
+		return hasKey;
+	}
+	
+	/**
+	 * Secure a connection that was accepted, the handshake happens on its first read or write
+	 * @param s: accepted socket
+	 */
+	public TlsConnection accept(Socket s) throws IOException {
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		return new TlsConnection(s, engine);
+	}
+	
+	/**
+	 * Secure a connection that was made to a server, the handshake happens on its first read or write
+	 * The address of the other side picks the cached session to resume.
+	 * @param s: connected socket
+	 * @param host: address of the other side
+	 * @param port: port of the other side
+	 */
+	public TlsConnection connect(Socket s, String host, int port) throws IOException {
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		return new TlsConnection(s, engine);
+	}
+	
+}
@@ -0,0 +1,247 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+public class TlsConnection {
+	
+	// Every connection takes three record sized buffers from the pool and gives them back when it closes
+	private static final int BUFFER_SIZE = 32 * 1024;
+	private static final int POOL_LIMIT = 768;
+	private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	
+	private Socket s;
+	private SSLEngine engine;
+	private InputStream rawIn;
+	private OutputStream rawOut;
+	// Bytes read from the socket that are not unwrapped yet, kept ready for writing into
+	private ByteBuffer netIn;
+	// Unwrapped bytes that have not been read yet, kept ready for reading
+	private ByteBuffer appIn;
+	private ByteBuffer netOut;
+	private Object writeLock;
+	private volatile boolean handshaken;
+	private volatile boolean closed;
+	
+	/**
+	 * A socket secured with an SSLEngine, read and written through streams like a plain socket
+	 * The engine only turns bytes into records and back, the socket I/O is done here, so the
+	 * handler and outbox threads keep using blocking streams. One thread reads while another
+	 * writes, which the engine allows, and writes are locked as the reading thread also
+	 * writes while handshaking. Each write is wrapped straight from the caller's array into
+	 * one record without another copy, so a flush of many frames costs one record.
+	 * @param s: connected socket
+	 * @param engine: engine in client or server mode
+	 */
+	public TlsConnection(Socket s, SSLEngine engine) throws IOException {
+		this.s = s;
+		this.engine = engine;
+		// Handshake messages are small writes that would otherwise wait on delayed ACKs
+		s.setTcpNoDelay(true);
+		this.rawIn = s.getInputStream();
+		this.rawOut = s.getOutputStream();
+		this.netIn = take();
+		this.appIn = take();
+		this.appIn.flip();
+		this.netOut = take();
+		this.writeLock = new Object();
+		this.handshaken = false;
+		this.closed = false;
+	}
+	
+	private static ByteBuffer take() {
+		ByteBuffer b = pool.poll();
+		if (b == null) return ByteBuffer.allocate(BUFFER_SIZE);
+		b.clear();
+		return b;
+	}
+	
+	private static void recycle(ByteBuffer b) {
+		if (b != null && pool.size() < POOL_LIMIT) pool.offer(b);
+	}
+	
+	/**
+	 * Do the handshake if it hasn't been done, called before the first read or write
+	 * A resumed session skips the certificate exchange, which is most of the cost.
+	 */
+	public void handshake() throws IOException {
+		if (handshaken) return;
+		synchronized (this) {
+			if (handshaken) return;
+			engine.beginHandshake();
+			HandshakeStatus status = engine.getHandshakeStatus();
+			while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+				switch (status) {
+				case NEED_WRAP:
+					wrap(EMPTY);
+					break;
+				case NEED_UNWRAP:
+				case NEED_UNWRAP_AGAIN:
+					if (!unwrap()) throw new EOFException("Connection closed during the TLS handshake");
+					break;
+				case NEED_TASK:
+					runTasks();
+					break;
+				default:
+					break;
+				}
+				status = engine.getHandshakeStatus();
+			}
+			handshaken = true;
+		}
+	}
+	
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) task.run();
+	}
+	
+	/**
+	 * Encrypt everything in a buffer and write it to the socket
+	 */
+	private void wrap(ByteBuffer src) throws IOException {
+		synchronized (writeLock) {
+			if (closed) throw new SocketException("Connection closed");
+			do {
+				netOut.clear();
+				SSLEngineResult result = engine.wrap(src, netOut);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0) {
+					throw new SocketException("Connection closed");
+				}
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) runTasks();
+				rawOut.write(netOut.array(), 0, netOut.position());
+			} while (src.hasRemaining());
+		}
+	}
+	
+	/**
+	 * Read from the socket until one record has been unwrapped
+	 * @return false if the connection has ended
+	 */
+	private boolean unwrap() throws IOException {
+		while (true) {
+			netIn.flip();
+			appIn.compact();
+			SSLEngineResult result;
+			try {
+				result = engine.unwrap(netIn, appIn);
+			} finally {
+				netIn.compact();
+				appIn.flip();
+			}
+			switch (result.getStatus()) {
+			case OK:
+				// Messages after the handshake, like session tickets, can need an answer
+				HandshakeStatus status = result.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) runTasks();
+				if (handshaken && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) wrap(EMPTY);
+				return true;
+			case BUFFER_UNDERFLOW:
+				int n = rawIn.read(netIn.array(), netIn.position(), netIn.remaining());
+				if (n < 0) return false;
+				netIn.position(netIn.position() + n);
+				break;
+			case CLOSED:
+				return false;
+			default:
+				throw new SSLException("Unexpected TLS state " + result.getStatus());
+			}
+		}
+	}
+	
+	/**
+	 * Get the stream of decrypted bytes from the other side
+	 */
+	public InputStream getInputStream() {
+		return new InputStream() {
+			
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				handshake();
+				while (!appIn.hasRemaining()) {
+					if (!unwrap()) return -1;
+				}
+				int n = Math.min(len, appIn.remaining());
+				appIn.get(b, off, n);
+				return n;
+			}
+			
+			@Override
+			public int available() {
+				return appIn.remaining();
+			}
+			
+			// Called by the reading thread when it is done, so its buffers can be reused
+			@Override
+			public void close() throws IOException {
+				TlsConnection.this.close();
+				ByteBuffer in = netIn;
+				ByteBuffer app = appIn;
+				netIn = null;
+				appIn = null;
+				recycle(in);
+				recycle(app);
+			}
+		};
+	}
+	
+	/**
+	 * Get the stream that encrypts and sends to the other side, best wrapped in a buffered stream
+	 */
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+			
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte)b}, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				handshake();
+				wrap(ByteBuffer.wrap(b, off, len));
+			}
+			
+			@Override
+			public void close() throws IOException {
+				TlsConnection.this.close();
+			}
+		};
+	}
+	
+	/**
+	 * Tell the other side the connection is ending and close the socket
+	 */
+	public void close() throws IOException {
+		synchronized (writeLock) {
+			if (closed) return;
+			try {
+				if (handshaken && !s.isClosed()) {
+					engine.closeOutbound();
+					netOut.clear();
+					engine.wrap(EMPTY, netOut);
+					rawOut.write(netOut.array(), 0, netOut.position());
+				}
+			} catch (IOException e) {
+				// The other side has already gone
+			} finally {
+				closed = true;
+				recycle(netOut);
+				netOut = null;
+				s.close();
+			}
+		}
+	}
+	
+}
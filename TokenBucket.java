@@ -0,0 +1,45 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TokenBucket {
+	
+	private long interval;
+	private long tolerance;
+	private AtomicLong next;
+	
+	/**
+	 * Lock-free token bucket
+	 * Instead of a token count the bucket keeps the time at which it will be full again,
+	 * so taking a token is a single compare-and-set on one value.
+	 * @param rate: tokens added per second
+	 * @param burst: maximum number of tokens that can be taken at once
+	 */
+	public TokenBucket(double rate, int burst) {
+		this.interval = (long)(1_000_000_000L / rate);
+		this.tolerance = interval * burst;
+		this.next = new AtomicLong(System.nanoTime());
+	}
+	
+	/**
+	 * Take one token if there is one
+	 * @return true if a token was taken, false if the caller is over the limit
+	 */
+	public boolean tryAcquire() {
+		return tryAcquire(1);
+	}
+	
+	/**
+	 * Take several tokens if there are enough, otherwise none
+	 * @param tokens: number of tokens to take
+	 * @return true if the tokens were taken, false if the caller is over the limit
+	 */
+	public boolean tryAcquire(int tokens) {
+		long now = System.nanoTime();
+		while (true) {
+			long full = next.get();
+			long updated = Math.max(full, now) + interval * tokens;
+			if (updated - now > tolerance) return false;
+			if (next.compareAndSet(full, updated)) return true;
+		}
+	}
+
+}
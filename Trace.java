@@ -0,0 +1,44 @@
+import java.time.Instant;
+
+public class Trace {
+	
+	// Stages a traced message is stamped at, in the order it passes them
+	public static final int CLIENT_SEND = 0;
+	public static final int SERVER_RECEIVE = 1;
+	public static final int LOCK_ACQUIRED = 2;
+	public static final int ENQUEUED = 3;
+	public static final int CLIENT_RECEIVE = 4;
+	public static final int STAGES = 5;
+	
+	// Histogram for the time from each stage to the next, then from sending to receiving
+	private static final String[] INTERVALS = {"trace.uplink.us", "trace.lock.us", "trace.handle.us", "trace.downlink.us"};
+	
+	/**
+	 * Get the current time in microseconds since the epoch, the unit of every stamp
+	 * Stamps from the clients and the server are only comparable if their clocks are in sync,
+	 * which they are when they run on the same machine.
+	 */
+	public static long now() {
+		Instant now = Instant.now();
+		return now.getEpochSecond() * 1000000 + now.getNano() / 1000;
+	}
+	
+	/**
+	 * Add the time between each pair of stamped stages of a trace to the histograms
+	 * uplink is the client to the server, lock is waiting for the server lock (or the shard),
+	 * handle is the request being handled until the message is queued to the recipient, and
+	 * downlink is the outbox, the socket and the recipient's receive queue.
+	 * @param metrics: metrics to record in
+	 * @param trace: stamps indexed by stage, 0 for a stage that wasn't stamped yet
+	 */
+	public static void record(Metrics metrics, long[] trace) {
+		if (trace.length < STAGES) return;
+		for (int i = 0; i < INTERVALS.length; i++) {
+			if (trace[i] != 0 && trace[i + 1] != 0) metrics.record(INTERVALS[i], trace[i + 1] - trace[i]);
+		}
+		if (trace[CLIENT_SEND] != 0 && trace[CLIENT_RECEIVE] != 0) {
+			metrics.record("trace.total.us", trace[CLIENT_RECEIVE] - trace[CLIENT_SEND]);
+		}
+	}
+	
+}
@@ -1,35 +1,59 @@
+import java.io.*;
 import java.time.*;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class User {
 	
+	private int id;
 	private String username;
 	private String password;
 	private boolean online;
 	private boolean blocked;
 	private LocalDateTime blockedTime;
-	private List<String> blockedUsers;
+	private IdSet blockedUsers;
 	private int loginAttempts;
 	private LocalDateTime lastLogin;
 	private LocalDateTime lastLogout;
 	private List<Packet> offlineMessages;
+	// Queue time of the oldest offline message, read by the compactor without the lock
+	private volatile long oldestQueued;
+	private IdSet watchList;
+	private StateStore journal;
+	private long version;
+	private Map<String, TokenBucket> buckets;
 	
 	/**
 	 * Account to be used with a client in the server
+	 * @param id: dense ID of the user, its position in credentials.txt
 	 * @param username: username of the user
 	 * @param password: password of the user
 	 */
-	public User(String username, String password) {
+	public User(int id, String username, String password) {
+		this.id = id;
 		this.username = username;
 		this.password = password;
 		this.online = false;
 		this.blocked = false;
-		this.blockedUsers = new ArrayList<>();
+		this.blockedUsers = new IdSet();
 		this.loginAttempts = 0;
 		this.lastLogin = null;
 		this.lastLogout = null;
 		this.offlineMessages = new ArrayList<>();
+		this.oldestQueued = Long.MAX_VALUE;
+		this.watchList = new IdSet();
+		this.journal = null;
+		this.version = 0;
+		this.buckets = new ConcurrentHashMap<>();
+	}
+	
+	/**
+	 * Get the ID of the user
+	 * Users are referred to by ID inside the server, usernames are only used in packets
+	 */
+	public int getId() {
+		return id;
 	}
 	
 	/**
@@ -39,6 +63,18 @@ public class User {
 		return username;
 	}
 	
+	/**
+	 * Get the rate limit bucket of this user for a command, creating it on first use
+	 * @param type: packet type of the command
+	 * @param rate: commands allowed per second
+	 * @param burst: commands allowed at once
+	 */
+	public TokenBucket getBucket(String type, double rate, int burst) {
+		TokenBucket bucket = buckets.get(type);
+		if (bucket == null) bucket = buckets.computeIfAbsent(type, k -> new TokenBucket(rate, burst));
+		return bucket;
+	}
+	
 	/**
 	 * Get the current login attempts for the given account
 	 * Used for checking if the account need to be locked
@@ -51,18 +87,20 @@ public class User {
 	 * Change the status of the user as online
 	 * Also set the lastLogin for whoelse and whoelsesince
 	 */
-	public void goOnline() {
+	public synchronized void goOnline() {
 		this.online = true;
 		lastLogin = LocalDateTime.now();
+		record("LOGIN", lastLogin, -1, null);
 	}
 	
 	/**
 	 * Change the status of the user as offline
 	 * Also set the lastLogout for whoelse and whoelsesince
 	 */
-	public void goOffline() {
+	public synchronized void goOffline() {
 		this.online = false;
 		lastLogout = LocalDateTime.now();
+		record("LOGOUT", lastLogout, -1, null);
 	}
 	
 	/**
@@ -112,44 +150,95 @@ public class User {
 	 * Lock the account from being successfully logged in to
 	 * for block_duration seconds
 	 */
-	public void lockOut() {
+	public synchronized void lockOut() {
 		blocked = true;
 		blockedTime = LocalDateTime.now();
+		record("LOCKOUT", blockedTime, -1, null);
 	}
 	
 	/**
 	 * Block another user from sending message to this user,
 	 * starting private messages and seeing login/logout alerts
-	 * @param user: user to be blocked
+	 * @param user: ID of the user to be blocked
+	 * @return true if the user wasn't blocked already
 	 */
-	public void blockUser(String user) {
-		blockedUsers.add(user);
+	public synchronized boolean blockUser(int user) {
+		if (!blockedUsers.add(user)) return false;
+		record("BLOCK", null, user, null);
+		return true;
 	}
 	
 	/**
 	 * Unblock another user
-	 * @param user: user to be unblocked
+	 * @param user: ID of the user to be unblocked
+	 * @return true if the user was blocked
 	 */
-	public void unblockUser(String user) {
-		if (blockedUsers.contains(user)) blockedUsers.remove(user);
+	public synchronized boolean unblockUser(int user) {
+		if (!blockedUsers.remove(user)) return false;
+		record("UNBLOCK", null, user, null);
+		return true;
 	}
 	
 	/**
 	 * Check if this user has blocked another user
-	 * @param user: person to check if they have been blocked
+	 * @param user: ID of the person to check if they have been blocked
 	 * @return true if the user is blocked
 	 */
-	public boolean hasBlocked(String user) {
+	public boolean hasBlocked(int user) {
 		return (blockedUsers.contains(user));
 	}
 	
+	/**
+	 * Get the IDs of everyone this user has blocked
+	 */
+	public int[] getBlockedUsers() {
+		return blockedUsers.toArray();
+	}
+	
+	/**
+	 * Only receive login/logout alerts for the users in the watch list
+	 * @param user: ID of the user to be watched
+	 */
+	public void watchUser(int user) {
+		watchList.add(user);
+	}
+	
+	/**
+	 * Stop watching another user
+	 * Once the watch list is empty alerts are received for everyone again
+	 * @param user: ID of the user to stop watching
+	 */
+	public void unwatchUser(int user) {
+		watchList.remove(user);
+	}
+	
+	/**
+	 * Check if this user is watching another user
+	 * @param user: ID of the person to check
+	 * @return true if the user is on the watch list
+	 */
+	public boolean isWatching(int user) {
+		return watchList.contains(user);
+	}
+	
+	/**
+	 * Check if this user should be told about another user logging in or out
+	 * @param user: ID of the user that logged in/out
+	 * @return true if the user is not blocked and is watched (or nobody is being watched)
+	 */
+	public boolean wantsPresence(int user) {
+		if (hasBlocked(user)) return false;
+		return (watchList.isEmpty() || watchList.contains(user));
+	}
+	
 	/**
 	 * Unlock this account so it can be logged in to again
 	 */
-	public void unlock() {
+	public synchronized void unlock() {
 		this.blocked = false;
 		this.blockedTime = null;
 		this.loginAttempts = 0;
+		record("UNLOCK", null, -1, null);
 	}
 	
 	/**
@@ -174,22 +263,209 @@ public class User {
 	 * Add a message to the offline messages list
 	 * @param packet: message to be sent to the user when they go online
 	 */
-	public void addMessage (Packet packet) {
+	public synchronized void addMessage (Packet packet) {
+		// Time spent offline isn't latency, so a queued message stops being traced
+		packet.setTrace(null);
+		// A message put back after a failed delivery keeps its first queue time
+		if (packet.getQueued() == 0) packet.setQueued(System.currentTimeMillis());
 		offlineMessages.add(packet);
+		oldestQueued = Math.min(oldestQueued, packet.getQueued());
+		record("ENQUEUE", toTime(packet.getQueued()), -1, packet);
 	}
 	
 	/**
 	 * Get the list of offline messages
 	 */
-	public List<Packet> getMessages () {
+	public synchronized List<Packet> getMessages () {
 		return offlineMessages;
 	}
 	
 	/**
 	 * Clear the list of offline messages
 	 */
-	public void clearMessges () {
+	public synchronized void clearMessges () {
 		offlineMessages.clear();
+		oldestQueued = Long.MAX_VALUE;
+		record("CLEAR", null, -1, null);
+	}
+	
+	/**
+	 * Remove and return all offline messages at once
+	 * Channel messages can be queued without the server lock, so getting and clearing
+	 * the list has to happen together
+	 */
+	public synchronized List<Packet> takeMessages () {
+		List<Packet> messages = offlineMessages;
+		offlineMessages = new ArrayList<>();
+		oldestQueued = Long.MAX_VALUE;
+		if (!messages.isEmpty()) record("CLEAR", null, -1, null);
+		return messages;
+	}
+	
+	/**
+	 * Get the queue time of the oldest offline message, without taking the lock
+	 * @return the time in milliseconds, Long.MAX_VALUE if there are none
+	 */
+	public long getOldestQueued() {
+		return oldestQueued;
+	}
+	
+	/**
+	 * Drop the offline messages that have waited longer than their type's time to live
+	 * The list is rebuilt at its new size so an abandoned account gives back its memory.
+	 * Expiry is not logged, messages that come back from the state log are expired again
+	 * as their queue time is logged with them.
+	 * @param now: current time in milliseconds
+	 * @param ttls: milliseconds each packet type is kept for, types that aren't listed never expire
+	 * @return the messages that were dropped
+	 */
+	public synchronized List<Packet> expireMessages (long now, Map<String, Long> ttls) {
+		List<Packet> expired = new ArrayList<>();
+		List<Packet> kept = new ArrayList<>();
+		long oldest = Long.MAX_VALUE;
+		for (Packet p : offlineMessages) {
+			Long ttl = ttls.get(p.getType());
+			if (ttl != null && now - p.getQueued() >= ttl) {
+				expired.add(p);
+			} else {
+				kept.add(p);
+				oldest = Math.min(oldest, p.getQueued());
+			}
+		}
+		if (!expired.isEmpty()) offlineMessages = kept;
+		oldestQueued = oldest;
+		return expired;
+	}
+	
+	private static LocalDateTime toTime (long millis) {
+		return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+	}
+	
+	private static long toMillis (LocalDateTime time) {
+		return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
+	
+	/**
+	 * Log every change of this user to a state store from now on
+	 * @param journal: store the changes are appended to
+	 */
+	public synchronized void setJournal (StateStore journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Append a change to the state log, if there is one
+	 * Must be called while holding this user's lock
+	 */
+	private void record (String op, LocalDateTime time, int arg, Packet packet) {
+		version++;
+		if (journal != null) journal.append(this, version, op, time, arg, packet);
+	}
+	
+	/**
+	 * Apply a change read back from the state log, without logging it again
+	 * Changes the snapshot already contains are ignored
+	 * @param version: version of the user after the change
+	 * @param op: type of change, see StateStore.append
+	 * @param arg: user ID for BLOCK/UNBLOCK, -1 otherwise
+	 */
+	public synchronized void apply (long version, String op, LocalDateTime time, int arg, Packet packet) {
+		if (version <= this.version) return;
+		this.version = version;
+		switch (op) {
+		case "LOGIN":
+			online = true;
+			lastLogin = time;
+			break;
+		case "LOGOUT":
+			online = false;
+			lastLogout = time;
+			break;
+		case "LOCKOUT":
+			blocked = true;
+			blockedTime = time;
+			break;
+		case "UNLOCK":
+			blocked = false;
+			blockedTime = null;
+			break;
+		case "BLOCK":
+			blockedUsers.add(arg);
+			break;
+		case "UNBLOCK":
+			blockedUsers.remove(arg);
+			break;
+		case "ENQUEUE":
+			packet.setQueued(toMillis(time));
+			offlineMessages.add(packet);
+			oldestQueued = Math.min(oldestQueued, packet.getQueued());
+			break;
+		case "CLEAR":
+			offlineMessages.clear();
+			oldestQueued = Long.MAX_VALUE;
+			break;
+		}
+	}
+	
+	/**
+	 * Nobody is connected after a restart, so users that were online are logged out now
+	 */
+	public synchronized void finishRestore () {
+		if (online) {
+			online = false;
+			lastLogout = LocalDateTime.now();
+		}
+	}
+	
+	/**
+	 * Copy the persistent state of this user for a snapshot
+	 * Only this user's lock is held while copying. Blocked users are stored by name
+	 * as IDs depend on the order of credentials.txt.
+	 * @param server: server to look up usernames on
+	 */
+	public synchronized void writeState (DataOutputStream out, Server server) throws IOException {
+		out.writeLong(version);
+		out.writeBoolean(online);
+		StateStore.writeTime(out, lastLogin);
+		StateStore.writeTime(out, lastLogout);
+		out.writeBoolean(blocked);
+		StateStore.writeTime(out, blockedTime);
+		int[] blocked = blockedUsers.toArray();
+		out.writeInt(blocked.length);
+		for (int u : blocked) out.writeUTF(server.getUser(u).getUsername());
+		out.writeInt(offlineMessages.size());
+		for (Packet p : offlineMessages) {
+			StateStore.writePacket(out, p);
+			out.writeLong(p.getQueued());
+		}
+	}
+	
+	/**
+	 * Load the state of this user from a snapshot
+	 * @param server: server to look up user IDs on
+	 */
+	public synchronized void readState (DataInputStream in, Server server) throws IOException {
+		version = in.readLong();
+		online = in.readBoolean();
+		lastLogin = StateStore.readTime(in);
+		lastLogout = StateStore.readTime(in);
+		blocked = in.readBoolean();
+		blockedTime = StateStore.readTime(in);
+		blockedUsers.clear();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			User blocked = server.getUser(in.readUTF());
+			if (blocked != null) blockedUsers.add(blocked.getId());
+		}
+		offlineMessages.clear();
+		count = in.readInt();
+		oldestQueued = Long.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			Packet p = StateStore.readPacket(in);
+			p.setQueued(in.readLong());
+			offlineMessages.add(p);
+			oldestQueued = Math.min(oldestQueued, p.getQueued());
+		}
 	}
 	
 }
\ No newline at end of file